@@ -0,0 +1,43 @@
+package chankyin.reflectiveio;
+
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Creates the collections and maps that {@link SavedObjectInputStream} reads into, according to their declared types.
+ *
+ * @see DefaultCollectionFactory
+ * @see ImmutableCollectionFactory
+ */
+public interface CollectionFactory{
+	/**
+	 * Creates an empty collection to read elements into.
+	 *
+	 * @param type the declared generic type of the collection, e.g. {@code Set<String>}
+	 * @param size the number of elements that will be added
+	 * @return an empty collection assignable to the erasure of {@code type}
+	 */
+	public Collection<Object> newCollection(Type type, int size);
+
+	/**
+	 * Creates an empty map to read entries into.
+	 *
+	 * @param type the declared generic type of the map, e.g. {@code Map<Integer, String>}
+	 * @param size the number of entries that will be put
+	 * @return an empty map assignable to the erasure of {@code type}
+	 */
+	public Map<Object, Object> newMap(Type type, int size);
+
+	/**
+	 * Returns the value to store after all elements or entries have been read into a collection or map created by
+	 * this factory.
+	 *
+	 * @param type      the declared generic type of the collection or map
+	 * @param container the populated collection or map
+	 * @return the value to store, which must be assignable to the erasure of {@code type}
+	 */
+	public default Object complete(Type type, Object container){
+		return container;
+	}
+}
@@ -0,0 +1,18 @@
+package chankyin.reflectiveio;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Complementary with {@link SavedProperty @SavedProperty} on a collection of {@link SavedObject @SavedObject}.
+ * <p>The class versions are written once for the whole collection, then each property of the elements is written as
+ * a contiguous column. All elements must be non-null instances of the same class.</p>
+ *
+ * @see SavedObjectInputStream#setColumnFilter(java.util.function.Predicate)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Columnar{
+}
@@ -0,0 +1,247 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import lombok.SneakyThrows;
+
+/**
+ * Codec of {@link Columnar @Columnar} collections.
+ */
+final class ColumnarCodec implements TypeCodec{
+	private final Type type;
+
+	ColumnarCodec(Type type){
+		this.type = type;
+	}
+
+	@Override
+	public void write(SavedObjectOutputStream out, Object value){
+		Object[] elements = value instanceof Object[] ? (Object[]) value : ((Collection<?>) value).toArray();
+		out.writeInt(elements.length);
+		if(elements.length == 0){
+			return;
+		}
+		Class<?> clazz = classOf(elements[0]);
+		for(Object element : elements){
+			if(element == null || classOf(element) != clazz){
+				throw new IllegalArgumentException("@Columnar collections must only contain non-null instances of one class");
+			}
+		}
+		out.writeHierarchyVersions(clazz);
+		for(Object element : elements){
+			if(element instanceof Serialized){
+				((Serialized) element).preSerialize();
+			}
+		}
+
+		SavedObjectLayout.Property[] properties = SavedObjectLayout.of(clazz).writtenProperties;
+		ByteArrayOutputStream column = new ByteArrayOutputStream();
+		for(int p = 0; p < properties.length; p++){
+			column.reset();
+			int versionCount = out.getFullVersionCount();
+			OutputStream previous = out.redirect(column);
+			try{
+				writeColumn(out, properties[p], p, elements);
+			}finally{
+				out.redirect(previous);
+			}
+			out.writeBoolean(out.getFullVersionCount() == versionCount); // whether the column can be skipped
+			out.writeInt(column.size());
+			out.writeRaw(column.toByteArray());
+		}
+	}
+
+	private static void writeColumn(SavedObjectOutputStream out, SavedObjectLayout.Property property, int p, Object[] elements){
+		Class<?> type = property.field.getType();
+		if(!type.isPrimitive()){
+			for(Object element : elements){
+				property.codec.write(out, valueOf(element, property, p));
+			}
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(elements.length * sizeOf(type)).order(out.getByteOrder());
+		for(Object element : elements){
+			if(element instanceof SavedObjectSnapshot){
+				putBoxed(buffer, type, ((SavedObjectSnapshot) element).values[p]);
+			}else{
+				putField(buffer, type, property.field, element); // without boxing
+			}
+		}
+		out.writeRaw(buffer.array());
+	}
+
+	@SneakyThrows(IllegalAccessException.class)
+	private static void putField(ByteBuffer buffer, Class<?> type, Field field, Object element){
+		if(type == byte.class){
+			buffer.put(field.getByte(element));
+		}else if(type == short.class){
+			buffer.putShort(field.getShort(element));
+		}else if(type == int.class){
+			buffer.putInt(field.getInt(element));
+		}else if(type == long.class){
+			buffer.putLong(field.getLong(element));
+		}else if(type == float.class){
+			buffer.putInt(Float.floatToIntBits(field.getFloat(element)));
+		}else if(type == double.class){
+			buffer.putLong(Double.doubleToLongBits(field.getDouble(element)));
+		}else if(type == boolean.class){
+			buffer.put((byte) (field.getBoolean(element) ? 1 : 0));
+		}else{
+			buffer.putChar(field.getChar(element));
+		}
+	}
+
+	/**
+	 * Puts a captured primitive value, which is boxed in {@link SavedObjectSnapshot#values}.
+	 */
+	private static void putBoxed(ByteBuffer buffer, Class<?> type, Object value){
+		if(type == byte.class){
+			buffer.put((Byte) value);
+		}else if(type == short.class){
+			buffer.putShort((Short) value);
+		}else if(type == int.class){
+			buffer.putInt((Integer) value);
+		}else if(type == long.class){
+			buffer.putLong((Long) value);
+		}else if(type == float.class){
+			buffer.putInt(Float.floatToIntBits((Float) value));
+		}else if(type == double.class){
+			buffer.putLong(Double.doubleToLongBits((Double) value));
+		}else if(type == boolean.class){
+			buffer.put((byte) ((Boolean) value ? 1 : 0));
+		}else{
+			buffer.putChar((Character) value);
+		}
+	}
+
+	@Override
+	public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+		int length = in.readInt();
+		Object[] previous = reuse instanceof Collection ? ((Collection<?>) reuse).toArray() : null;
+		Collection<Object> coll = TypeCodecs.reuseCollection(in, type, reuse, length);
+		if(length == 0){
+			return in.getCollectionFactory().complete(type, coll);
+		}
+
+		Class<?> clazz = in.readHierarchyClass();
+		SavedObjectLayout layout = SavedObjectLayout.of(clazz);
+		Object[] elements = new Object[length];
+		boolean[] recycled = new boolean[length];
+		for(int i = 0; i < length; i++){
+			elements[i] = in.recycle(clazz, previous != null && i < previous.length ? previous[i] : null);
+			recycled[i] = elements[i] != null;
+			if(!recycled[i]){
+				elements[i] = in.newInstance(clazz);
+			}
+			in.fillOwner(layout, elements[i], owner, recycled[i]);
+		}
+		for(SavedObjectLayout.Property property : layout.properties){
+			if(!in.isPresent(property)){
+				resetColumn(in, property, elements, recycled);
+				continue;
+			}
+			boolean skippable = in.readBoolean();
+			int size = in.readInt();
+			if(skippable && !in.isColumnSelected(property.field)){
+				in.skipFully(size);
+				resetColumn(in, property, elements, recycled);
+			}else{
+				readColumn(in, property, elements, recycled);
+			}
+		}
+		for(Object element : elements){
+			if(element instanceof Unserialized){
+				((Unserialized) element).postUnserialize();
+			}
+		}
+
+		for(Object element : elements){
+			coll = TypeCodecs.add(in, type, coll, element, length);
+		}
+		return in.getCollectionFactory().complete(type, coll);
+	}
+
+	private static void resetColumn(SavedObjectInputStream in, SavedObjectLayout.Property property, Object[] elements, boolean[] recycled){
+		for(int i = 0; i < elements.length; i++){
+			if(recycled[i]){
+				in.resetProperty(property, elements[i]);
+			}
+		}
+	}
+
+	@SneakyThrows(IllegalAccessException.class)
+	private static void readColumn(SavedObjectInputStream in, SavedObjectLayout.Property property, Object[] elements, boolean[] recycled){
+		Field field = property.field;
+		Class<?> type = field.getType();
+		if(!type.isPrimitive()){
+			for(int i = 0; i < elements.length; i++){
+				field.set(elements[i], property.codec.read(in, elements[i], recycled[i] ? field.get(elements[i]) : null));
+			}
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(in.readRaw(elements.length * sizeOf(type))).order(in.getByteOrder());
+		for(Object element : elements){
+			if(type == byte.class){
+				field.setByte(element, buffer.get());
+			}else if(type == short.class){
+				field.setShort(element, buffer.getShort());
+			}else if(type == int.class){
+				field.setInt(element, buffer.getInt());
+			}else if(type == long.class){
+				field.setLong(element, buffer.getLong());
+			}else if(type == float.class){
+				field.setFloat(element, Float.intBitsToFloat(buffer.getInt()));
+			}else if(type == double.class){
+				field.setDouble(element, Double.longBitsToDouble(buffer.getLong()));
+			}else if(type == boolean.class){
+				field.setBoolean(element, buffer.get() != 0);
+			}else{
+				field.setChar(element, buffer.getChar());
+			}
+		}
+	}
+
+	@Override
+	public Object capture(Object value){
+		Object[] elements = ((Collection<?>) value).toArray();
+		for(int i = 0; i < elements.length; i++){
+			elements[i] = TypeCodecs.SavedObjectCodec.INSTANCE.capture(elements[i]);
+		}
+		return elements;
+	}
+
+	@Override
+	public boolean reusesInstances(){
+		return true;
+	}
+
+	private static Class<?> classOf(Object element){
+		return element instanceof SavedObjectSnapshot ? ((SavedObjectSnapshot) element).clazz : element.getClass();
+	}
+
+	@SneakyThrows(IllegalAccessException.class)
+	private static Object valueOf(Object element, SavedObjectLayout.Property property, int p){
+		if(element instanceof SavedObjectSnapshot){
+			return ((SavedObjectSnapshot) element).values[p];
+		}
+		return property.field.get(element);
+	}
+
+	private static int sizeOf(Class<?> primitive){
+		if(primitive == byte.class || primitive == boolean.class){
+			return 1;
+		}else if(primitive == short.class || primitive == char.class){
+			return 2;
+		}else if(primitive == int.class || primitive == float.class){
+			return 4;
+		}
+		return 8;
+	}
+}
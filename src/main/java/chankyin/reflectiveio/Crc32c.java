@@ -0,0 +1,63 @@
+package chankyin.reflectiveio;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as in {@code java.util.zip.CRC32C} which is not available before Java 9.
+ * <p>Input is processed eight bytes at a time with the slicing-by-8 tables.</p>
+ */
+final class Crc32c implements Checksum{
+	private static final int POLYNOMIAL = 0x82F63B78; // reversed 0x1EDC6F41
+	private static final int[][] TABLES = new int[8][256];
+
+	static{
+		for(int n = 0; n < 256; n++){
+			int crc = n;
+			for(int k = 0; k < 8; k++){
+				crc = (crc & 1) != 0 ? crc >>> 1 ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLES[0][n] = crc;
+		}
+		for(int n = 0; n < 256; n++){
+			int crc = TABLES[0][n];
+			for(int t = 1; t < 8; t++){
+				crc = TABLES[0][crc & 0xFF] ^ crc >>> 8;
+				TABLES[t][n] = crc;
+			}
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	@Override
+	public void update(int b){
+		crc = TABLES[0][(crc ^ b) & 0xFF] ^ crc >>> 8;
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len){
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+		int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+		int crc = this.crc;
+		for(; len >= 8; off += 8, len -= 8){
+			int lo = crc ^ (b[off] & 0xFF | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+			int hi = b[off + 4] & 0xFF | (b[off + 5] & 0xFF) << 8 | (b[off + 6] & 0xFF) << 16 | (b[off + 7] & 0xFF) << 24;
+			crc = t7[lo & 0xFF] ^ t6[lo >>> 8 & 0xFF] ^ t5[lo >>> 16 & 0xFF] ^ t4[lo >>> 24] ^
+					t3[hi & 0xFF] ^ t2[hi >>> 8 & 0xFF] ^ t1[hi >>> 16 & 0xFF] ^ t0[hi >>> 24];
+		}
+		for(; len > 0; len--){
+			crc = t0[(crc ^ b[off++]) & 0xFF] ^ crc >>> 8;
+		}
+		this.crc = crc;
+	}
+
+	@Override
+	public long getValue(){
+		return ~crc & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset(){
+		crc = 0xFFFFFFFF;
+	}
+}
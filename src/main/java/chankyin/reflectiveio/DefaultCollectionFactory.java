@@ -0,0 +1,104 @@
+package chankyin.reflectiveio;
+
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.SneakyThrows;
+
+/**
+ * Creates collections presized for the number of elements to read, so that they never grow or rehash while reading.
+ * <p>For abstract declared types, the implementation is chosen as follows:</p>
+ * <ul>
+ * <li>{@code List} or {@code Collection}: {@link ArrayList}</li>
+ * <li>{@code Queue} or {@code Deque}: {@link ArrayDeque}</li>
+ * <li>{@code SortedSet}: {@link TreeSet}; {@code SortedMap}: {@link TreeMap}</li>
+ * <li>{@code Set} of enums: {@link EnumSet}; {@code Map} with enum keys: {@link EnumMap}</li>
+ * <li>{@code Map} with {@code Integer} keys: {@link IntKeyMap}</li>
+ * <li>other {@code Set}: {@link LinkedHashSet}; other {@code Map}: {@link LinkedHashMap}</li>
+ * <li>{@code ConcurrentMap}: {@link ConcurrentHashMap}</li>
+ * </ul>
+ * <p>Concrete declared types are instantiated directly, through their capacity constructor if known.</p>
+ */
+public class DefaultCollectionFactory implements CollectionFactory{
+	@Override
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@SneakyThrows({IllegalAccessException.class, InstantiationException.class})
+	public Collection<Object> newCollection(Type type, int size){
+		Class<?> raw = TypeCodecs.erasure(type);
+		Class<?> element = TypeCodecs.erasure(typeArgument(type, 0));
+		if(raw == ArrayList.class || raw.isAssignableFrom(ArrayList.class)){
+			return new ArrayList<>(size);
+		}else if(raw == ArrayDeque.class || raw.isAssignableFrom(ArrayDeque.class)){
+			return new ArrayDeque<>(size);
+		}else if(raw == HashSet.class){
+			return new HashSet<>(capacity(size));
+		}else if(raw == LinkedHashSet.class){
+			return new LinkedHashSet<>(capacity(size));
+		}else if(raw.isAssignableFrom(EnumSet.class) && element.isEnum()){
+			return (Collection) EnumSet.noneOf(element.asSubclass(Enum.class));
+		}else if(raw.isAssignableFrom(TreeSet.class) && SortedSet.class.isAssignableFrom(raw)){
+			return new TreeSet<>();
+		}else if(raw.isAssignableFrom(LinkedHashSet.class)){
+			return new LinkedHashSet<>(capacity(size));
+		}else if(raw.isInterface() || Modifier.isAbstract(raw.getModifiers())){
+			throw new UnsupportedOperationException("Cannot create collection of type " + type.getTypeName());
+		}
+		return (Collection<Object>) raw.newInstance();
+	}
+
+	@Override
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@SneakyThrows({IllegalAccessException.class, InstantiationException.class})
+	public Map<Object, Object> newMap(Type type, int size){
+		Class<?> raw = TypeCodecs.erasure(type);
+		Class<?> key = TypeCodecs.erasure(typeArgument(type, 0));
+		if(raw == HashMap.class){
+			return new HashMap<>(capacity(size));
+		}else if(raw == LinkedHashMap.class){
+			return new LinkedHashMap<>(capacity(size));
+		}else if(raw.isAssignableFrom(EnumMap.class) && key.isEnum()){
+			return new EnumMap(key.asSubclass(Enum.class));
+		}else if(raw.isAssignableFrom(IntKeyMap.class) && key == Integer.class){
+			return (Map) new IntKeyMap<>(size);
+		}else if(raw.isAssignableFrom(TreeMap.class) && SortedMap.class.isAssignableFrom(raw)){
+			return new TreeMap<>();
+		}else if(raw.isAssignableFrom(LinkedHashMap.class)){
+			return new LinkedHashMap<>(capacity(size));
+		}else if(raw.isAssignableFrom(ConcurrentHashMap.class)){
+			return new ConcurrentHashMap<>(capacity(size));
+		}else if(raw.isInterface() || Modifier.isAbstract(raw.getModifiers())){
+			throw new UnsupportedOperationException("Cannot create map of type " + type.getTypeName());
+		}
+		return (Map<Object, Object>) raw.newInstance();
+	}
+
+	/**
+	 * Returns the initial capacity of a hash table with the default load factor that holds {@code size} entries.
+	 *
+	 * @param size the number of entries
+	 * @return the initial capacity
+	 */
+	protected static int capacity(int size){
+		return (int) (size / 0.75f) + 1;
+	}
+
+	protected static Type typeArgument(Type type, int index){
+		return type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[index] : Object.class;
+	}
+}
@@ -0,0 +1,150 @@
+package chankyin.reflectiveio;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.NonNull;
+
+/**
+ * Caches the encoded bytes of immutable SavedObjects by identity, so that writing them again only copies bytes.
+ * <p>An object is immutable if its class is annotated with {@code @SavedObject(immutable = true)} or if it was passed to
+ * {@link #markImmutable(Object)}. Objects are referenced weakly, and the least recently used encodings are evicted once
+ * the cached bytes exceed the configured limit.</p>
+ * <p>This class is thread-safe and can be shared between streams.</p>
+ */
+public class EncodedObjectCache{
+	private final long maxBytes;
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+	private final Map<IdentityKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<IdentityKey, Boolean> marks = new HashMap<>();
+	private long cachedBytes = 0L;
+
+	/**
+	 * @param maxBytes the maximum total size of cached encodings
+	 */
+	public EncodedObjectCache(long maxBytes){
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Marks an object as immutable, so that its encoding is cached regardless of its class.
+	 *
+	 * @param object the object that will not change anymore
+	 */
+	public synchronized void markImmutable(@NonNull Object object){
+		expungeStaleKeys();
+		marks.put(new IdentityKey(object, queue), Boolean.TRUE);
+	}
+
+	/**
+	 * Removes the cached encoding and the immutable mark of an object, e.g. because it has changed after all.
+	 *
+	 * @param object the object
+	 */
+	public synchronized void invalidate(@NonNull Object object){
+		IdentityKey key = new IdentityKey(object, null);
+		marks.remove(key);
+		Entry entry = entries.remove(key);
+		if(entry != null){
+			cachedBytes -= entry.bytes.length;
+		}
+	}
+
+	public boolean isImmutable(@NonNull Object object){
+		SavedObject annotation = object.getClass().getDeclaredAnnotation(SavedObject.class);
+		if(annotation != null && annotation.immutable()){
+			return true;
+		}
+		synchronized(this){
+			return !marks.isEmpty() && marks.containsKey(new IdentityKey(object, null));
+		}
+	}
+
+	synchronized Entry get(Object object, ByteOrder byteOrder){
+		expungeStaleKeys();
+		Entry entry = entries.get(new IdentityKey(object, null));
+		return entry != null && entry.byteOrder == byteOrder ? entry : null;
+	}
+
+	synchronized Entry put(Object object, ByteOrder byteOrder, byte[] bytes, Map<String, Short> versions){
+		Entry entry = new Entry(byteOrder, bytes, versions);
+		if(bytes.length > maxBytes){
+			return entry; // used once without caching
+		}
+		expungeStaleKeys();
+		Entry previous = entries.put(new IdentityKey(object, queue), entry);
+		if(previous != null){
+			cachedBytes -= previous.bytes.length;
+		}
+		cachedBytes += bytes.length;
+		for(Iterator<Entry> iterator = entries.values().iterator(); cachedBytes > maxBytes && iterator.hasNext(); ){
+			cachedBytes -= iterator.next().bytes.length; // least recently used first
+			iterator.remove();
+		}
+		return entry;
+	}
+
+	private void expungeStaleKeys(){
+		for(Reference<?> key; (key = queue.poll()) != null; ){
+			marks.remove(key);
+			Entry entry = entries.remove(key);
+			if(entry != null){
+				cachedBytes -= entry.bytes.length;
+			}
+		}
+	}
+
+	static final class Entry{
+		final ByteOrder byteOrder;
+		final byte[] bytes;
+		/**
+		 * Class names of the versions in {@link #bytes}, in the order they first occur
+		 */
+		final String[] classNames;
+		final short[] versions;
+
+		private Entry(ByteOrder byteOrder, byte[] bytes, Map<String, Short> versions){
+			this.byteOrder = byteOrder;
+			this.bytes = bytes;
+			classNames = new String[versions.size()];
+			this.versions = new short[versions.size()];
+			int i = 0;
+			for(Map.Entry<String, Short> version : versions.entrySet()){
+				classNames[i] = version.getKey();
+				this.versions[i++] = version.getValue();
+			}
+		}
+	}
+
+	private static final class IdentityKey extends WeakReference<Object>{
+		private final int hash;
+
+		private IdentityKey(Object referent, ReferenceQueue<Object> queue){
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(o == this){
+				return true;
+			}
+			if(!(o instanceof IdentityKey)){
+				return false;
+			}
+			Object referent = get();
+			return referent != null && referent == ((IdentityKey) o).get();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package chankyin.reflectiveio;
+
+import java.util.Arrays;
+
+/**
+ * A SavedObject decoded by {@link GenericRecordReader} without its class: the values of its properties, in the order
+ * of {@link SavedObjectSchema.ClassSchema#getProperties()}.
+ * <p>Values are decoded as follows: primitives as their boxed types, strings as strings, enums and classes as their
+ * names, SavedObjects as GenericRecords, arrays as {@code Object[]}, collections (including
+ * {@link Columnar @Columnar} collections) as {@link java.util.List}s and maps as {@link java.util.LinkedHashMap}s.</p>
+ * <p>A record can be passed back to {@link GenericRecordReader#next(GenericRecord)} to be refilled with the next
+ * record, which avoids allocating a record per SavedObject.</p>
+ */
+public final class GenericRecord{
+	private static final Object[] NO_VALUES = new Object[0];
+
+	SavedObjectSchema.ClassSchema schema;
+	Object[] values = NO_VALUES;
+
+	/**
+	 * Clears the values and prepares them for a record of the specified class version.
+	 */
+	void reset(SavedObjectSchema.ClassSchema schema){
+		this.schema = schema;
+		if(values.length != schema.properties.length){
+			values = new Object[schema.properties.length];
+		}else{
+			Arrays.fill(values, null);
+		}
+	}
+
+	public SavedObjectSchema.ClassSchema getSchema(){
+		return schema;
+	}
+
+	public String getClassName(){
+		return schema.className;
+	}
+
+	public short getVersion(){
+		return schema.version;
+	}
+
+	public int size(){
+		return values.length;
+	}
+
+	/**
+	 * Returns the value of the property at the specified position.
+	 *
+	 * @param index the position of the property in the schema
+	 * @return the decoded value, or {@code null} if the property is null or was not selected by a
+	 * {@link RecordVisitor}
+	 */
+	public Object get(int index){
+		return values[index];
+	}
+
+	/**
+	 * Returns the value of a property.
+	 *
+	 * @param name the field name
+	 * @return the decoded value, or {@code null} if the property is null or not written by this class version
+	 */
+	public Object get(String name){
+		int index = schema.indexOf(name);
+		return index == -1 ? null : values[index];
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder builder = new StringBuilder(schema.className).append('{');
+		for(int i = 0; i < values.length; i++){
+			builder.append(i == 0 ? "" : ", ").append(schema.properties[i].name).append('=');
+			builder.append(values[i] instanceof Object[] ? Arrays.deepToString((Object[]) values[i]) : values[i]);
+		}
+		return builder.append('}').toString();
+	}
+}
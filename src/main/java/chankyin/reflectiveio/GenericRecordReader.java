@@ -0,0 +1,284 @@
+package chankyin.reflectiveio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+
+/**
+ * Reads SavedObjects written by {@link SavedObjectOutputStream} without loading their classes, using the field types
+ * recorded in a {@link SavedObjectSchema}.
+ * <p>SavedObjects can be decoded into {@link GenericRecord}s, which may be reused from one SavedObject to the next, or
+ * walked by a {@link RecordVisitor}, which skips the properties it does not select without decoding them.</p>
+ */
+public class GenericRecordReader implements Closeable{
+	private final SavedObjectInputStream in;
+	private final SavedObjectSchema schema;
+	private int flag = -2; // -2 if the next flag has not been read yet
+
+	public GenericRecordReader(@NonNull InputStream in, @NonNull SavedObjectSchema schema){
+		this.in = in instanceof SavedObjectInputStream ? (SavedObjectInputStream) in : new SavedObjectInputStream(in);
+		this.schema = schema;
+	}
+
+	/**
+	 * Returns whether another SavedObject remains in the stream.
+	 *
+	 * @return whether the end of the stream has not been reached
+	 */
+	@SneakyThrows(IOException.class)
+	public boolean hasNext(){
+		if(flag == -2){
+			flag = in.read();
+		}
+		return flag != -1;
+	}
+
+	public GenericRecord next(){
+		return next(null);
+	}
+
+	/**
+	 * Decodes the next SavedObject.
+	 *
+	 * @param reuse the record to fill, or {@code null} to create a new record
+	 * @return the filled record, or {@code null} if a null SavedObject was read
+	 * @throws NoSuchElementException if the end of the stream has been reached
+	 */
+	public GenericRecord next(GenericRecord reuse){
+		if(!nextFlag()){
+			return null;
+		}
+		GenericRecord record = reuse != null ? reuse : new GenericRecord();
+		readRecordBody(record);
+		return record;
+	}
+
+	/**
+	 * Walks the properties of the next SavedObject. Null SavedObjects are not visited.
+	 *
+	 * @param visitor the visitor
+	 * @throws NoSuchElementException if the end of the stream has been reached
+	 */
+	public void accept(@NonNull RecordVisitor visitor){
+		if(!nextFlag()){
+			return;
+		}
+		SavedObjectSchema.ClassSchema classSchema = readClassSchema();
+		visitor.visitRecord(classSchema);
+		for(SavedObjectSchema.Property property : classSchema.properties){
+			if(visitor.selects(property)){
+				visitor.visitProperty(property, read(property.type));
+			}else{
+				skip(property.type);
+			}
+		}
+		visitor.visitEnd();
+	}
+
+	/**
+	 * Skips the next SavedObject without decoding its values.
+	 *
+	 * @throws NoSuchElementException if the end of the stream has been reached
+	 */
+	public void skip(){
+		if(nextFlag()){
+			skipRecordBody();
+		}
+	}
+
+	@Override
+	public void close() throws IOException{
+		in.close();
+	}
+
+	private boolean nextFlag(){
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		boolean notNull = flag != 0;
+		flag = -2;
+		return notNull;
+	}
+
+	private SavedObjectSchema.ClassSchema readClassSchema(){
+		String className = in.readHierarchyVersions();
+		short version = in.getReadVersion(className);
+		SavedObjectSchema.ClassSchema classSchema = schema.get(className, version);
+		if(classSchema == null){
+			throw new IllegalStateException("No schema of " + className + " version " + version);
+		}
+		return classSchema;
+	}
+
+	private void readRecordBody(GenericRecord record){
+		SavedObjectSchema.ClassSchema classSchema = readClassSchema();
+		record.reset(classSchema);
+		for(int i = 0; i < classSchema.properties.length; i++){
+			record.values[i] = read(classSchema.properties[i].type);
+		}
+	}
+
+	private void skipRecordBody(){
+		for(SavedObjectSchema.Property property : readClassSchema().properties){
+			skip(property.type);
+		}
+	}
+
+	private Object read(SavedObjectSchema.FieldType type){
+		switch(type.kind){
+			case BYTE:
+				return in.readByte();
+			case SHORT:
+				return in.readShort();
+			case INT:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case BOOLEAN:
+				return in.readBoolean();
+			case CHAR:
+				return in.readChar();
+			case STRING:
+			case CLASS:
+			case ENUM:
+				return in.readString();
+			case SAVED_OBJECT:{
+				if(!in.readBoolean()){
+					return null;
+				}
+				GenericRecord record = new GenericRecord();
+				readRecordBody(record);
+				return record;
+			}
+			case NULLABLE:
+				return in.readBoolean() ? read(type.arguments[0]) : null;
+			case ARRAY:{
+				Object[] array = new Object[in.readInt()];
+				for(int i = 0; i < array.length; i++){
+					array[i] = read(type.arguments[0]);
+				}
+				return array;
+			}
+			case COLLECTION:{
+				int length = in.readInt();
+				List<Object> list = new ArrayList<>(length);
+				for(int i = 0; i < length; i++){
+					list.add(read(type.arguments[0]));
+				}
+				return list;
+			}
+			case MAP:{
+				int length = in.readInt();
+				Map<Object, Object> map = new LinkedHashMap<>(DefaultCollectionFactory.capacity(length));
+				for(int i = 0; i < length; i++){
+					Object k = read(type.arguments[0]);
+					map.put(k, read(type.arguments[1]));
+				}
+				return map;
+			}
+			case COLUMNAR:
+				return readColumnar(true);
+		}
+		throw new AssertionError(type.kind);
+	}
+
+	/**
+	 * Reads or skips a {@link Columnar @Columnar} collection. Columns that contain the first occurrence of a class
+	 * version are walked even if they are skipped, so that the version is registered.
+	 *
+	 * @param decode whether to decode the elements
+	 * @return the decoded elements, or {@code null} if they are skipped
+	 */
+	private List<Object> readColumnar(boolean decode){
+		int length = in.readInt();
+		List<Object> list = decode ? new ArrayList<>(length) : null;
+		if(length == 0){
+			return list;
+		}
+		SavedObjectSchema.ClassSchema classSchema = readClassSchema();
+		GenericRecord[] elements = new GenericRecord[decode ? length : 0];
+		for(int i = 0; i < elements.length; i++){
+			elements[i] = new GenericRecord();
+			elements[i].reset(classSchema);
+			list.add(elements[i]);
+		}
+		for(int p = 0; p < classSchema.properties.length; p++){
+			SavedObjectSchema.FieldType type = classSchema.properties[p].type;
+			boolean skippable = in.readBoolean();
+			int size = in.readInt();
+			if(decode){
+				for(GenericRecord element : elements){
+					element.values[p] = read(type);
+				}
+			}else if(skippable){
+				in.skipFully(size);
+			}else{
+				skipElements(length, type);
+			}
+		}
+		return list;
+	}
+
+	private void skip(SavedObjectSchema.FieldType type){
+		int size = type.fixedSize();
+		if(size != -1){
+			in.skipFully(size);
+			return;
+		}
+		switch(type.kind){
+			case STRING:
+			case CLASS:
+			case ENUM:
+				in.skipFully(in.readIntVarSize(3));
+				break;
+			case SAVED_OBJECT:
+				if(in.readBoolean()){
+					skipRecordBody();
+				}
+				break;
+			case NULLABLE:
+				if(in.readBoolean()){
+					skip(type.arguments[0]);
+				}
+				break;
+			case ARRAY:
+			case COLLECTION:
+				skipElements(in.readInt(), type.arguments[0]);
+				break;
+			case MAP:
+				for(int i = in.readInt(); i > 0; i--){
+					skip(type.arguments[0]);
+					skip(type.arguments[1]);
+				}
+				break;
+			case COLUMNAR:
+				readColumnar(false);
+				break;
+			default:
+				throw new AssertionError(type.kind);
+		}
+	}
+
+	private void skipElements(int length, SavedObjectSchema.FieldType type){
+		int size = type.fixedSize();
+		if(size != -1){
+			in.skipFully((long) length * size);
+			return;
+		}
+		for(int i = 0; i < length; i++){
+			skip(type);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package chankyin.reflectiveio;
+
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates collections like {@link DefaultCollectionFactory}, then makes collections declared as {@code List},
+ * {@code Set}, {@code Collection} or {@code Map} unmodifiable: empty ones are replaced by shared instances and
+ * single-element ones by singletons; larger ones are wrapped in unmodifiable views without copying. Lists are already
+ * presized to their exact length, while sets and maps keep the capacity of their hash tables. Containers of other
+ * types, such as a set reused for a field declared as {@code Collection}, are made unmodifiable according to their own
+ * type, or returned as they are.
+ * <p>Collections read with this factory are not reused by {@link SavedObjectInputStream#readSavedObjectInto(Object,
+ * Object)}, since they cannot be cleared.</p>
+ */
+public class ImmutableCollectionFactory extends DefaultCollectionFactory{
+	@Override
+	@SuppressWarnings("unchecked")
+	public Object complete(Type type, Object container){
+		Class<?> raw = TypeCodecs.erasure(type);
+		if((raw == List.class || raw == Collection.class) && container instanceof List){
+			List<Object> list = (List<Object>) container;
+			if(list.size() <= 1){
+				return list.isEmpty() ? Collections.emptyList() : Collections.singletonList(list.get(0));
+			}
+			return Collections.unmodifiableList(list);
+		}else if((raw == Set.class || raw == Collection.class) && container instanceof Set){
+			Set<Object> set = (Set<Object>) container;
+			if(set.size() <= 1){
+				return set.isEmpty() ? Collections.emptySet() : Collections.singleton(set.iterator().next());
+			}
+			return Collections.unmodifiableSet(set);
+		}else if(raw == Map.class && container instanceof Map){
+			Map<Object, Object> map = (Map<Object, Object>) container;
+			if(map.size() <= 1){
+				if(map.isEmpty()){
+					return Collections.emptyMap();
+				}
+				Map.Entry<Object, Object> entry = map.entrySet().iterator().next();
+				return Collections.singletonMap(entry.getKey(), entry.getValue());
+			}
+			return Collections.unmodifiableMap(map);
+		}
+		return container;
+	}
+}
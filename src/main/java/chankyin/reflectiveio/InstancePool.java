@@ -0,0 +1,19 @@
+package chankyin.reflectiveio;
+
+/**
+ * Supplies instances of {@link SavedObject @SavedObject} classes that {@link SavedObjectInputStream} would otherwise
+ * allocate with {@link Class#newInstance()}.
+ * <p>Pooled instances are populated without running a constructor: properties present in the stream are overwritten,
+ * properties absent from the class version of the stream and {@link FillWithOwner @FillWithOwner} fields that do not
+ * accept the owner are reset to {@code null}, zero or {@code false}, and other fields are left as they are.</p>
+ */
+@FunctionalInterface
+public interface InstancePool{
+	/**
+	 * Returns an instance of the class to be populated by the reader.
+	 *
+	 * @param clazz the class of the object being read
+	 * @return an instance of {@code clazz}, or {@code null} to let the reader allocate a new instance
+	 */
+	public Object acquire(Class<?> clazz);
+}
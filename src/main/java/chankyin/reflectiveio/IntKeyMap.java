@@ -0,0 +1,295 @@
+package chankyin.reflectiveio;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A map with {@code int} keys that iterates in insertion order, like {@link java.util.LinkedHashMap}.
+ * <p>Keys are stored unboxed in an array next to the values, and looked up through an open-addressing index, so
+ * {@link #get(int)} and {@link #put(int, Object)} do not allocate. Null keys are not supported.</p>
+ *
+ * @param <V> the type of values
+ */
+public class IntKeyMap<V> extends AbstractMap<Integer, V>{
+	private static final Object REMOVED = new Object();
+
+	/**
+	 * Keys in insertion order, including removed entries until the next rehash
+	 */
+	private int[] keys;
+	/**
+	 * Values in the order of {@link #keys}, or {@link #REMOVED}
+	 */
+	private Object[] values;
+	/**
+	 * Open-addressing table of positions in {@link #keys} plus one, or 0 for empty slots. Its length is a power of two.
+	 */
+	private int[] index;
+	/**
+	 * Number of used positions in {@link #keys}, including removed entries
+	 */
+	private int count;
+	private int size;
+	private int modCount;
+
+	public IntKeyMap(){
+		this(8);
+	}
+
+	/**
+	 * Creates a map that holds {@code expectedSize} entries without rehashing.
+	 *
+	 * @param expectedSize the expected number of entries
+	 */
+	public IntKeyMap(int expectedSize){
+		allocate(Math.max(expectedSize, 4));
+	}
+
+	private void allocate(int capacity){
+		keys = new int[capacity];
+		values = new Object[capacity];
+		index = new int[Integer.highestOneBit(capacity * 2 - 1) * 2]; // load factor at most 0.5
+	}
+
+	private static int hash(int key){
+		int h = key * 0x9E3779B9;
+		return h ^ h >>> 16;
+	}
+
+	/**
+	 * Returns the position of the key in {@link #keys}, or -1 if absent.
+	 */
+	private int positionOf(int key){
+		int mask = index.length - 1;
+		for(int slot = hash(key) & mask; index[slot] != 0; slot = slot + 1 & mask){
+			int position = index[slot] - 1;
+			if(keys[position] == key && values[position] != REMOVED){
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key){
+		int position = positionOf(key);
+		return position == -1 ? null : (V) values[position];
+	}
+
+	public boolean containsKey(int key){
+		return positionOf(key) != -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value){
+		int position = positionOf(key);
+		if(position != -1){
+			V previous = (V) values[position];
+			values[position] = value;
+			return previous;
+		}
+		if(count == keys.length){
+			rehash(Math.max(size * 2, 4));
+		}
+		keys[count] = key;
+		values[count] = value;
+		int mask = index.length - 1;
+		int slot = hash(key) & mask;
+		while(index[slot] != 0){
+			slot = slot + 1 & mask;
+		}
+		index[slot] = ++count;
+		size++;
+		modCount++;
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(int key){
+		int position = positionOf(key);
+		if(position == -1){
+			return null;
+		}
+		V previous = (V) values[position];
+		removeAt(position);
+		return previous;
+	}
+
+	private void removeAt(int position){
+		values[position] = REMOVED; // the index slot stays as a tombstone until the next rehash
+		size--;
+		modCount++;
+	}
+
+	private void rehash(int capacity){
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		int oldCount = count;
+		allocate(capacity);
+		count = 0;
+		size = 0;
+		int mask = index.length - 1;
+		for(int i = 0; i < oldCount; i++){
+			if(oldValues[i] != REMOVED){
+				keys[count] = oldKeys[i];
+				values[count] = oldValues[i];
+				int slot = hash(oldKeys[i]) & mask;
+				while(index[slot] != 0){
+					slot = slot + 1 & mask;
+				}
+				index[slot] = ++count;
+				size++;
+			}
+		}
+	}
+
+	@Override
+	public int size(){
+		return size;
+	}
+
+	@Override
+	public V get(Object key){
+		return key instanceof Integer ? get((int) (Integer) key) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key){
+		return key instanceof Integer && containsKey((int) (Integer) key);
+	}
+
+	@Override
+	public V put(Integer key, V value){
+		return put((int) key, value);
+	}
+
+	@Override
+	public V remove(Object key){
+		return key instanceof Integer ? remove((int) (Integer) key) : null;
+	}
+
+	@Override
+	public void clear(){
+		Arrays.fill(values, 0, count, null);
+		Arrays.fill(index, 0);
+		count = 0;
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public Set<Map.Entry<Integer, V>> entrySet(){
+		return new AbstractSet<Map.Entry<Integer, V>>(){
+			@Override
+			public Iterator<Map.Entry<Integer, V>> iterator(){
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size(){
+				return size;
+			}
+
+			@Override
+			public void clear(){
+				IntKeyMap.this.clear();
+			}
+		};
+	}
+
+	private class Entry implements Map.Entry<Integer, V>{
+		private final int position;
+
+		private Entry(int position){
+			this.position = position;
+		}
+
+		@Override
+		public Integer getKey(){
+			return keys[position];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V getValue(){
+			return (V) values[position];
+		}
+
+		@Override
+		public V setValue(V value){
+			V previous = getValue();
+			values[position] = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Map.Entry)){
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			return getKey().equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+		}
+
+		@Override
+		public int hashCode(){
+			return keys[position] ^ Objects.hashCode(getValue());
+		}
+
+		@Override
+		public String toString(){
+			return keys[position] + "=" + getValue();
+		}
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<Integer, V>>{
+		private int next = advance(0);
+		private int last = -1;
+		private int expectedModCount = modCount;
+
+		private int advance(int position){
+			while(position < count && values[position] == REMOVED){
+				position++;
+			}
+			return position;
+		}
+
+		@Override
+		public boolean hasNext(){
+			return next < count;
+		}
+
+		@Override
+		public Map.Entry<Integer, V> next(){
+			if(modCount != expectedModCount){
+				throw new ConcurrentModificationException();
+			}
+			if(next >= count){
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = advance(next + 1);
+			return new Entry(last);
+		}
+
+		@Override
+		public void remove(){
+			if(last == -1){
+				throw new IllegalStateException();
+			}
+			if(modCount != expectedModCount){
+				throw new ConcurrentModificationException();
+			}
+			removeAt(last);
+			last = -1;
+			expectedModCount = modCount;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package chankyin.reflectiveio;
+
+/**
+ * Receives the properties of SavedObjects walked by {@link GenericRecordReader#accept(RecordVisitor)}.
+ * <p>Only the properties selected by {@link #selects(SavedObjectSchema.Property)} are decoded; the others are skipped
+ * without allocating their values.</p>
+ */
+public interface RecordVisitor{
+	/**
+	 * Called before the properties of a SavedObject are visited.
+	 *
+	 * @param schema the schema of the class version of the SavedObject
+	 */
+	public default void visitRecord(SavedObjectSchema.ClassSchema schema){
+	}
+
+	/**
+	 * Returns whether the value of a property should be decoded and passed to
+	 * {@link #visitProperty(SavedObjectSchema.Property, Object)}.
+	 *
+	 * @param property the property about to be read
+	 * @return whether to decode the property
+	 */
+	public default boolean selects(SavedObjectSchema.Property property){
+		return true;
+	}
+
+	/**
+	 * Receives the decoded value of a selected property, in the representation described in {@link GenericRecord}.
+	 *
+	 * @param property the property
+	 * @param value    the decoded value
+	 */
+	public void visitProperty(SavedObjectSchema.Property property, Object value);
+
+	/**
+	 * Called after all properties of a SavedObject are read.
+	 */
+	public default void visitEnd(){
+	}
+}
@@ -14,4 +14,12 @@ import lombok.NoArgsConstructor;
 @Target(ElementType.TYPE)
 public @interface SavedObject{
 	short value();
+
+	/**
+	 * Returns whether instances of this class never change after construction. The encoded bytes of immutable
+	 * instances are cached by {@link SavedObjectOutputStream}s with an {@link EncodedObjectCache}.
+	 *
+	 * @return whether instances of this class are immutable
+	 */
+	boolean immutable() default false;
 }
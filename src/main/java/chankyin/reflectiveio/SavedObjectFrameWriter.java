@@ -0,0 +1,83 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import lombok.NonNull;
+
+/**
+ * Writes SavedObjects as a sequence of independently decodable frames, which can be read back with
+ * {@link SavedObjectFrames}.
+ * <p>Each frame is encoded with a fresh class-version table, so no frame refers to versions written in another
+ * frame.</p>
+ */
+public class SavedObjectFrameWriter implements Closeable, Flushable{
+	private final OutputStream out;
+	private final ByteOrder byteOrder;
+	private final SavedObjectFrames.Format format;
+	private final FrameBuffer buffer = new FrameBuffer();
+
+	public SavedObjectFrameWriter(@NonNull OutputStream out){
+		this(out, ByteOrder.BIG_ENDIAN);
+	}
+
+	public SavedObjectFrameWriter(@NonNull OutputStream out, ByteOrder byteOrder){
+		this(out, byteOrder, SavedObjectFrames.Format.PLAIN);
+	}
+
+	/**
+	 * @param out       the stream to write frames to
+	 * @param byteOrder the byte order to encode SavedObjects with
+	 * @param format    the frame format; {@link SavedObjectFrames.Format#CHECKSUMMED} frames can be verified and
+	 *                  salvaged
+	 */
+	public SavedObjectFrameWriter(@NonNull OutputStream out, ByteOrder byteOrder, @NonNull SavedObjectFrames.Format format){
+		this.out = out;
+		this.byteOrder = byteOrder;
+		this.format = format;
+	}
+
+	/**
+	 * Writes a SavedObject as one frame.
+	 *
+	 * @param object the SavedObject to write, or {@code null}
+	 * @throws IOException if the wrapped stream throws an {@link IOException}
+	 */
+	public void write(Object object) throws IOException{
+		buffer.reset();
+		buffer.write(new byte[format.headerSize]); // reserved for the header
+		new SavedObjectOutputStream(buffer, byteOrder).writeSavedObject(object);
+		int length = buffer.size() - format.headerSize;
+		ByteBuffer header = ByteBuffer.wrap(buffer.array(), 0, format.headerSize);
+		if(format == SavedObjectFrames.Format.CHECKSUMMED){
+			header.putInt(SavedObjectFrames.SYNC_MARKER).putInt(0).putInt(length);
+			Crc32c crc = new Crc32c();
+			crc.update(buffer.array(), format.lengthOffset, 4 + length);
+			header.putInt(4, (int) crc.getValue());
+		}else{
+			header.putInt(length);
+		}
+		buffer.writeTo(out);
+	}
+
+	@Override
+	public void flush() throws IOException{
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException{
+		out.close();
+	}
+
+	private static class FrameBuffer extends ByteArrayOutputStream{
+		byte[] array(){
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,530 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+
+/**
+ * Reads files written by {@link SavedObjectFrameWriter}.
+ * <p>A frame file is a sequence of frames, each consisting of a big-endian INT payload length followed by the payload,
+ * which is a SavedObject written with a fresh class-version table. Since frames are independent, the spliterators
+ * returned by this class can be split at frame boundaries and decoded in parallel.</p>
+ * <p>Files written in the {@link Format#CHECKSUMMED} format can also be verified in parallel with
+ * {@link #verify(Path)}, and read past damaged frames with {@link #salvage(Path, ByteOrder, LongConsumer)}.</p>
+ */
+public final class SavedObjectFrames{
+	/**
+	 * The first INT of every checksummed frame, which the salvage reader searches for to resynchronize
+	 */
+	static final int SYNC_MARKER = 0xF4A3C2E1;
+	/**
+	 * Number of bytes read at once while searching for {@link #SYNC_MARKER}
+	 */
+	private static final int SCAN_BUFFER_SIZE = 1 << 16;
+	/**
+	 * Number of frames between two offsets kept in memory. Splitting happens at these offsets only, and the index
+	 * takes one long per segment.
+	 */
+	private static final int SEGMENT_FRAMES = 64;
+
+	private SavedObjectFrames(){
+	}
+
+	public enum Format{
+		/**
+		 * {@code INT payload-length}, then the payload
+		 */
+		PLAIN(4, 0),
+		/**
+		 * {@code INT sync-marker}, {@code INT checksum} (the CRC-32C of the payload length and the payload),
+		 * {@code INT payload-length}, then the payload
+		 */
+		CHECKSUMMED(12, 8);
+
+		final int headerSize;
+		final int lengthOffset;
+
+		Format(int headerSize, int lengthOffset){
+			this.headerSize = headerSize;
+			this.lengthOffset = lengthOffset;
+		}
+	}
+
+	/**
+	 * Opens a frame file as a stream of SavedObjects. The stream is sequential; call {@link Stream#parallel()} to decode
+	 * frames on multiple threads. The file is closed when the stream is closed.
+	 *
+	 * @param path the frame file
+	 * @return a stream of the SavedObjects in the file, in file order
+	 * @throws IOException if the file cannot be opened or the frame headers are malformed
+	 */
+	public static Stream<Object> stream(@NonNull Path path) throws IOException{
+		return stream(path, ByteOrder.BIG_ENDIAN);
+	}
+
+	public static Stream<Object> stream(@NonNull Path path, ByteOrder byteOrder) throws IOException{
+		return stream(path, byteOrder, Format.PLAIN);
+	}
+
+	/**
+	 * Opens a frame file as a stream of SavedObjects, as in {@link #stream(Path)}. Checksums of
+	 * {@link Format#CHECKSUMMED} frames are verified before decoding; a mismatch fails the stream with a
+	 * {@link StreamCorruptedException}.
+	 *
+	 * @param path      the frame file
+	 * @param byteOrder the byte order the frames were written with
+	 * @param format    the format the frames were written in
+	 * @return a stream of the SavedObjects in the file, in file order
+	 * @throws IOException if the file cannot be opened or the frame headers are malformed
+	 */
+	public static Stream<Object> stream(@NonNull Path path, ByteOrder byteOrder, @NonNull Format format) throws IOException{
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try{
+			return StreamSupport.stream(spliterator(channel, byteOrder, format), false).onClose(() -> close(channel));
+		}catch(IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Indexes the frames in a channel and returns a spliterator over them. The index is built by scanning the frame
+	 * headers once, without decoding any payload.
+	 *
+	 * @param channel   the channel to read frames from with positional reads
+	 * @param byteOrder the byte order the frames were written with
+	 * @return a spliterator over the SavedObjects in the channel
+	 * @throws IOException if the channel cannot be read or the frame headers are malformed
+	 */
+	public static Spliterator<Object> spliterator(@NonNull FileChannel channel, ByteOrder byteOrder) throws IOException{
+		return spliterator(channel, byteOrder, Format.PLAIN);
+	}
+
+	public static Spliterator<Object> spliterator(@NonNull FileChannel channel, ByteOrder byteOrder, @NonNull Format format) throws IOException{
+		long[] segments = new long[16];
+		int segmentCount = 0;
+		long frameCount = 0;
+		long size = channel.size();
+		FrameReader reader = new FrameReader(channel, format, size);
+		for(long position = 0; position < size; frameCount++){
+			if(frameCount % SEGMENT_FRAMES == 0){
+				if(segmentCount == segments.length){
+					segments = Arrays.copyOf(segments, segmentCount * 2);
+				}
+				segments[segmentCount++] = position;
+			}
+			int length = reader.readHeader(position);
+			if(length == -1){
+				if(format == Format.PLAIN || position + format.headerSize > size){
+					throw new EOFException("Truncated frame " + frameCount);
+				}
+				throw new StreamCorruptedException("Malformed header of frame " + frameCount);
+			}
+			position += format.headerSize + length;
+		}
+		return new FrameSpliterator(reader, byteOrder, segments, frameCount, 0, 0, segmentCount);
+	}
+
+	/**
+	 * Checks the checksums of all frames in a {@link Format#CHECKSUMMED} frame file on multiple threads.
+	 * <p>Frame headers are indexed first, resynchronizing at the next sync marker after malformed headers; the frames
+	 * are then checked in parallel. Frames that fail the check are rescanned for frames hidden by a damaged payload
+	 * length.</p>
+	 *
+	 * @param path the frame file
+	 * @return the numbers of intact frames and the offsets where damage was detected
+	 * @throws IOException if the file cannot be read
+	 */
+	public static Verification verify(@NonNull Path path) throws IOException{
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+			long size = channel.size();
+			FrameReader indexer = new FrameReader(channel, Format.CHECKSUMMED, size);
+			List<Long> damaged = new ArrayList<>();
+			long[] indexed = index(indexer, 0, size, damaged);
+			Set<Long> rescanned = new HashSet<>();
+
+			LongStream.Builder intact = LongStream.builder();
+			for(long[] pending = indexed; pending.length > 0; ){
+				long[] round = pending;
+				boolean[] valid = checkFrames(channel, size, round);
+				LongStream.Builder next = LongStream.builder();
+				for(int i = 0; i < round.length; i++){
+					long position = round[i];
+					if(valid[i]){
+						intact.add(position);
+						continue;
+					}
+					damaged.add(position);
+					long end = position + Format.CHECKSUMMED.headerSize + indexer.readHeader(position);
+					for(long hidden : index(indexer, position + 1, end, null)){
+						if(Arrays.binarySearch(indexed, hidden) < 0 && rescanned.add(hidden)){
+							next.add(hidden);
+						}
+					}
+				}
+				pending = next.build().toArray();
+			}
+
+			// indexing followed unverified payload lengths, so drop offsets that turned out to be inside intact frames
+			long[] intactFrames = intact.build().sorted().toArray();
+			long[] offsets = damaged.stream().mapToLong(Long::longValue)
+					.filter(offset -> !isInsideFrame(indexer, intactFrames, offset)).sorted().distinct().toArray();
+			return new Verification(intactFrames.length, offsets);
+		}
+	}
+
+	/**
+	 * Checks the checksums of frames in parallel, in chunks of {@link #SEGMENT_FRAMES} frames. Each chunk has its own
+	 * reader, so no buffers are left behind in the worker threads.
+	 *
+	 * @param frames the offsets of the frames
+	 * @return whether each frame is intact
+	 */
+	private static boolean[] checkFrames(FileChannel channel, long size, long[] frames){
+		boolean[] valid = new boolean[frames.length];
+		IntStream.range(0, (frames.length + SEGMENT_FRAMES - 1) / SEGMENT_FRAMES).parallel().forEach(chunk -> {
+			FrameReader reader = new FrameReader(channel, Format.CHECKSUMMED, size); // readers are not thread-safe
+			for(int i = chunk * SEGMENT_FRAMES, end = Math.min(i + SEGMENT_FRAMES, frames.length); i < end; i++){
+				valid[i] = reader.readFrame(frames[i]) != -1;
+			}
+		});
+		return valid;
+	}
+
+	/**
+	 * Returns whether the offset is after the start of one of the frames, but before its end.
+	 *
+	 * @param frames the offsets of the frames in ascending order
+	 */
+	private static boolean isInsideFrame(FrameReader reader, long[] frames, long offset){
+		int index = Arrays.binarySearch(frames, offset);
+		if(index >= 0){
+			return false; // the start of an intact frame is never reported
+		}
+		int before = -index - 2;
+		return before >= 0 && offset < frames[before] + Format.CHECKSUMMED.headerSize + reader.readHeader(frames[before]);
+	}
+
+	/**
+	 * Returns the offsets of the checksummed frames whose headers are well-formed and start in {@code [from, to)}.
+	 * After a malformed header, scanning continues at the next sync marker.
+	 *
+	 * @param damaged the list to add the offsets of malformed headers to, or {@code null}
+	 */
+	private static long[] index(FrameReader reader, long from, long to, List<Long> damaged) throws IOException{
+		LongStream.Builder frames = LongStream.builder();
+		for(long position = from; position < to; ){
+			int length = reader.readHeader(position);
+			if(length != -1){
+				frames.add(position);
+				position += Format.CHECKSUMMED.headerSize + length;
+			}else{
+				if(damaged != null){
+					damaged.add(position);
+				}
+				position = findSyncMarker(reader.channel, position + 1, to);
+			}
+		}
+		return frames.build().toArray();
+	}
+
+	/**
+	 * Opens a {@link Format#CHECKSUMMED} frame file as a sequential stream of the SavedObjects in its intact frames.
+	 * Damaged frames are skipped, and reading resumes at the next frame with a matching checksum.
+	 *
+	 * @param path           the frame file
+	 * @param byteOrder      the byte order the frames were written with
+	 * @param damageListener receives the offset of each damaged region, or {@code null}
+	 * @return a stream of the SavedObjects in the intact frames, in file order
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static Stream<Object> salvage(@NonNull Path path, ByteOrder byteOrder, LongConsumer damageListener) throws IOException{
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try{
+			Iterator<Object> iterator = new SalvageIterator(new FrameReader(channel, Format.CHECKSUMMED, channel.size()), byteOrder, damageListener);
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false).onClose(() -> close(channel));
+		}catch(IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the position of the next {@link #SYNC_MARKER} starting in {@code [from, to)}, or {@code to} if there is
+	 * none.
+	 */
+	private static long findSyncMarker(FileChannel channel, long from, long to) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		long size = channel.size();
+		for(long start = from; start < to; start += SCAN_BUFFER_SIZE - 3){ // overlap in case a marker is cut
+			buffer.clear().limit((int) Math.min(SCAN_BUFFER_SIZE, size - start));
+			readFully(channel, buffer, start);
+			for(int i = 0; i + 4 <= buffer.limit() && start + i < to; i++){
+				if(buffer.getInt(i) == SYNC_MARKER){
+					return start + i;
+				}
+			}
+			if(buffer.limit() < SCAN_BUFFER_SIZE){
+				break;
+			}
+		}
+		return to;
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		int start = buffer.position();
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position() - start) < 0){
+				throw new EOFException();
+			}
+		}
+	}
+
+	@SneakyThrows(IOException.class)
+	private static void close(FileChannel channel){
+		channel.close();
+	}
+
+	/**
+	 * The result of {@link #verify(Path)}
+	 */
+	public static final class Verification{
+		private final long validFrames;
+		private final long[] damagedOffsets;
+
+		private Verification(long validFrames, long[] damagedOffsets){
+			this.validFrames = validFrames;
+			this.damagedOffsets = damagedOffsets;
+		}
+
+		public long getValidFrames(){
+			return validFrames;
+		}
+
+		/**
+		 * Returns the offsets of the frames with mismatching checksums and of the malformed headers, in ascending
+		 * order. A damaged payload length may hide further damage up to the next intact frame.
+		 *
+		 * @return the offsets where damage was detected
+		 */
+		public long[] getDamagedOffsets(){
+			return damagedOffsets.clone();
+		}
+
+		public boolean isIntact(){
+			return damagedOffsets.length == 0;
+		}
+	}
+
+	/**
+	 * Reads frames with positional reads into a buffer that grows with the largest frame. Not thread-safe.
+	 */
+	private static final class FrameReader{
+		final FileChannel channel;
+		final Format format;
+		final long size;
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+
+		/**
+		 * @param size the size of the channel, which must not change while reading
+		 */
+		FrameReader(FileChannel channel, Format format, long size){
+			this.channel = channel;
+			this.format = format;
+			this.size = size;
+		}
+
+		/**
+		 * Reads the header of the frame at the position.
+		 *
+		 * @return the payload length, or -1 if the header is malformed or the frame is truncated
+		 */
+		@SneakyThrows(IOException.class)
+		int readHeader(long position){
+			if(position + format.headerSize > size){
+				return -1;
+			}
+			buffer.clear().limit(format.headerSize);
+			readFully(channel, buffer, position);
+			if(format == Format.CHECKSUMMED && buffer.getInt(0) != SYNC_MARKER){
+				return -1;
+			}
+			int length = buffer.getInt(format.lengthOffset);
+			return length < 0 || position + format.headerSize + length > size ? -1 : length;
+		}
+
+		/**
+		 * Reads the frame at the position into {@link #buffer}, and checks its checksum if the format has one.
+		 *
+		 * @return the payload length, or -1 if the frame is malformed, truncated or damaged
+		 */
+		@SneakyThrows(IOException.class)
+		int readFrame(long position){
+			int length = readHeader(position);
+			if(length == -1){
+				return -1;
+			}
+			int frameSize = format.headerSize + length;
+			if(buffer.capacity() < frameSize){
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(frameSize, buffer.capacity() * 2));
+				larger.put(buffer.array(), 0, format.headerSize);
+				buffer = larger;
+			}
+			buffer.limit(frameSize);
+			readFully(channel, buffer, position + format.headerSize);
+			if(format == Format.CHECKSUMMED){
+				Crc32c crc = new Crc32c();
+				crc.update(buffer.array(), format.lengthOffset, 4 + length);
+				if((int) crc.getValue() != buffer.getInt(4)){
+					return -1;
+				}
+			}
+			return length;
+		}
+
+		Object decode(int length, ByteOrder byteOrder){
+			ByteArrayInputStream payload = new ByteArrayInputStream(buffer.array(), format.headerSize, length);
+			return new SavedObjectInputStream(payload, byteOrder).readSavedObject(null);
+		}
+	}
+
+	private static class SalvageIterator implements Iterator<Object>{
+		private final FrameReader reader;
+		private final ByteOrder byteOrder;
+		private final LongConsumer damageListener;
+		private long position = 0;
+		private int length = -2; // -2 if the next frame has not been found yet, -1 at the end of the file
+		private boolean damaged = false;
+
+		private SalvageIterator(FrameReader reader, ByteOrder byteOrder, LongConsumer damageListener){
+			this.reader = reader;
+			this.byteOrder = byteOrder;
+			this.damageListener = damageListener;
+		}
+
+		@Override
+		@SneakyThrows(IOException.class)
+		public boolean hasNext(){
+			while(length == -2){
+				if(position >= reader.size){
+					length = -1;
+					break;
+				}
+				int frameLength = reader.readFrame(position);
+				if(frameLength != -1){
+					length = frameLength;
+					damaged = false;
+				}else{
+					if(!damaged && damageListener != null){
+						damageListener.accept(position);
+					}
+					damaged = true;
+					position = findSyncMarker(reader.channel, position + 1, reader.size);
+				}
+			}
+			return length != -1;
+		}
+
+		@Override
+		public Object next(){
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			Object object = reader.decode(length, byteOrder);
+			position += reader.format.headerSize + length;
+			length = -2;
+			return object;
+		}
+	}
+
+	private static class FrameSpliterator implements Spliterator<Object>{
+		private final FrameReader reader;
+		private final ByteOrder byteOrder;
+		/**
+		 * Offsets of every {@link #SEGMENT_FRAMES}-th frame, shared between all splits
+		 */
+		private final long[] segments;
+		private final long frameCount;
+		private final int toSegment;
+		private long index;
+		private long position;
+
+		private FrameSpliterator(FrameReader reader, ByteOrder byteOrder, long[] segments, long frameCount, long index, long position, int toSegment){
+			this.reader = reader;
+			this.byteOrder = byteOrder;
+			this.segments = segments;
+			this.frameCount = frameCount;
+			this.index = index;
+			this.position = position;
+			this.toSegment = toSegment;
+		}
+
+		private long framesBefore(int segment){
+			return Math.min((long) segment * SEGMENT_FRAMES, frameCount);
+		}
+
+		@Override
+		@SneakyThrows(IOException.class)
+		public boolean tryAdvance(Consumer<? super Object> action){
+			if(index >= framesBefore(toSegment)){
+				return false;
+			}
+			int length = reader.readFrame(position);
+			if(length == -1){
+				throw new StreamCorruptedException("Checksum mismatch in frame " + index);
+			}
+			position += reader.format.headerSize + length;
+			index++;
+			action.accept(reader.decode(length, byteOrder));
+			return true;
+		}
+
+		@Override
+		public Spliterator<Object> trySplit(){
+			int lo = (int) (index / SEGMENT_FRAMES) + 1; // never split the segment being read
+			if(lo >= toSegment){
+				return null;
+			}
+			int mid = (lo + toSegment) >>> 1;
+			FrameReader prefixReader = new FrameReader(reader.channel, reader.format, reader.size); // readers are not thread-safe
+			FrameSpliterator prefix = new FrameSpliterator(prefixReader, byteOrder, segments, frameCount, index, position, mid);
+			index = framesBefore(mid);
+			position = segments[mid];
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize(){
+			return framesBefore(toSegment) - index;
+		}
+
+		@Override
+		public int characteristics(){
+			return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+		}
+	}
+}
@@ -1,26 +1,36 @@
 package chankyin.reflectiveio;
 
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Array;
 import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import lombok.NonNull;
 import lombok.SneakyThrows;
 
+import org.apache.commons.lang3.ArrayUtils;
+
 import static chankyin.reflectiveio.ReflectiveIoUtils.DEBUG;
 
 public class SavedObjectInputStream extends FilterInputStream{
 	private final ByteOrder byteOrder;
 	private final Map<String, Short> readVersions = new LinkedHashMap<>();
+	private final Map<String, Class<?>> classes = new HashMap<>();
+	private InstancePool instancePool;
+	private Predicate<Field> columnFilter;
+	private CollectionFactory collectionFactory = new DefaultCollectionFactory();
 
 	public SavedObjectInputStream(@NonNull InputStream in){
 		this(in, ByteOrder.BIG_ENDIAN);
@@ -31,6 +41,46 @@ public class SavedObjectInputStream extends FilterInputStream{
 		this.byteOrder = byteOrder;
 	}
 
+	/**
+	 * Sets the pool that supplies instances of {@link SavedObject @SavedObject} classes allocated by this reader.
+	 * Pooled instances are populated like the targets of {@link #readSavedObjectInto(Object, Object)}.
+	 *
+	 * @param instancePool the pool, or {@code null} to always allocate new instances
+	 */
+	public void setInstancePool(InstancePool instancePool){
+		this.instancePool = instancePool;
+	}
+
+	/**
+	 * Sets the factory of collections and maps read from this stream. {@link DefaultCollectionFactory} is used by
+	 * default.
+	 *
+	 * @param collectionFactory the factory
+	 */
+	public void setCollectionFactory(@NonNull CollectionFactory collectionFactory){
+		this.collectionFactory = collectionFactory;
+	}
+
+	CollectionFactory getCollectionFactory(){
+		return collectionFactory;
+	}
+
+	ByteOrder getByteOrder(){
+		return byteOrder;
+	}
+
+	/**
+	 * Sets the filter that selects the columns to decode in {@link Columnar @Columnar} collections. Properties of
+	 * unselected columns keep the values set by the constructor on new elements, and are reset to {@code null}, zero or
+	 * {@code false} on reused elements, unless the column has to be decoded anyway because it contains the first
+	 * occurrence of a class version in the stream.
+	 *
+	 * @param columnFilter the filter accepting the fields to decode, or {@code null} to decode all columns
+	 */
+	public void setColumnFilter(Predicate<Field> columnFilter){
+		this.columnFilter = columnFilter;
+	}
+
 	public byte readByte(){
 		return readBytes(1)[0];
 	}
@@ -82,50 +132,104 @@ public class SavedObjectInputStream extends FilterInputStream{
 		return readString(3);
 	}
 
-	@SneakyThrows(IOException.class)
 	public String readString(int size){
 		int l = (int) readIntVarSize(size);
-		byte[] bytes = new byte[l];
-		read(bytes);
-		return new String(bytes);
+		return new String(readRaw(l)); // not byte-order dependent, as in SavedObjectOutputStream.writeString()
 	}
 
-	@SneakyThrows({IllegalAccessException.class, InstantiationException.class})
 	public Object readSavedObject(Object owningObject){
+		return readSavedObject(owningObject, null);
+	}
+
+	/**
+	 * Reads a SavedObject into an existing instance. If the class in the stream is not exactly the class of
+	 * {@code target}, a new instance is created instead.
+	 * <p>Collections and nested {@link SavedObject @SavedObject} children already held by {@code target} are reused
+	 * where their types match the stream.</p>
+	 * <p>Since no constructor is run, properties that are not present in the class version of the stream are reset to
+	 * {@code null}, zero or {@code false}, and so are {@link FillWithOwner @FillWithOwner} fields that do not accept
+	 * {@code owningObject}. Fields without either annotation are left as they are.</p>
+	 *
+	 * @param target        the instance to populate
+	 * @param owningObject  the object to fill into {@link FillWithOwner @FillWithOwner} fields, or {@code null}
+	 * @return the populated object, which is {@code target} unless the class in the stream differs, or {@code null} if
+	 * a null SavedObject was read
+	 */
+	public Object readSavedObjectInto(@NonNull Object target, Object owningObject){
+		return readSavedObject(owningObject, target);
+	}
+
+	/**
+	 * Returns an iterator over the SavedObjects remaining in this stream, which are read lazily until the end of the
+	 * stream is reached.
+	 *
+	 * @param owningObject the object to fill into {@link FillWithOwner @FillWithOwner} fields, or {@code null}
+	 * @return an iterator over the remaining SavedObjects
+	 */
+	public Iterator<Object> iterator(Object owningObject){
+		return new Iterator<Object>(){
+			private int flag = -2; // -2 if the next flag has not been read yet
+
+			@Override
+			@SneakyThrows(IOException.class)
+			public boolean hasNext(){
+				if(flag == -2){
+					flag = read();
+				}
+				return flag != -1;
+			}
+
+			@Override
+			public Object next(){
+				if(!hasNext()){
+					throw new NoSuchElementException();
+				}
+				boolean notNull = flag != 0;
+				flag = -2;
+				return notNull ? readSavedObjectBody(owningObject, null) : null;
+			}
+		};
+	}
+
+	/**
+	 * Returns a sequential stream of the SavedObjects remaining in this stream. Objects are read lazily, so only the
+	 * object being consumed is held in memory.
+	 *
+	 * @param owningObject the object to fill into {@link FillWithOwner @FillWithOwner} fields, or {@code null}
+	 * @return a stream of the remaining SavedObjects
+	 * @see SavedObjectFrames#stream(java.nio.file.Path) for streams that can be decoded in parallel
+	 */
+	public Stream<Object> stream(Object owningObject){
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(owningObject), Spliterator.ORDERED), false);
+	}
+
+	Object readSavedObject(Object owningObject, Object reuse){
 		if(!readBoolean()){
 			return null;
 		}
-		String className = readHierarchyVersions();
-		Class<?> clazz;
-		try{
-			clazz = Class.forName(className);
-		}catch(ClassNotFoundException e){
-			throw new ClassCastException(className);
-		}
-		if(DEBUG){
-			System.err.println(String.format("Reading SavedObject %s (%s)", clazz.getName(), className));
-		}
-		Object object = clazz.newInstance();
+		return readSavedObjectBody(owningObject, reuse);
+	}
 
-		if(owningObject != null){
-			for(Field field : ReflectiveIoUtils.getAllFields(clazz, s -> s.getDeclaredAnnotation(FillWithOwner.class) != null)){
-				if(field.getType().isInstance(owningObject)){ // a class may have multiple possible owners
-					if(!field.isAccessible()) field.setAccessible(true);
-					field.set(object, owningObject);
-				}
-			}
+	private Object readSavedObjectBody(Object owningObject, Object reuse){
+		Class<?> clazz = readHierarchyClass();
+		Object object = recycle(clazz, reuse);
+		boolean recycled = object != null;
+		if(!recycled){
+			object = newInstance(clazz);
 		}
-		for(Field field : ReflectiveIoUtils.getAllFields(clazz, s -> s.getDeclaredAnnotation(SavedObject.class) != null)){
+		SavedObjectLayout layout = SavedObjectLayout.of(clazz);
+
+		fillOwner(layout, object, owningObject, recycled);
+		for(SavedObjectLayout.Property property : layout.properties){
 			if(DEBUG){
 				System.err.println(readVersions);
-				System.err.println(field.getDeclaringClass().getName());
-				System.err.println(readVersions.get(field.getDeclaringClass().getName()));
+				System.err.println(property.declaringClassName);
+				System.err.println(readVersions.get(property.declaringClassName));
 			}
-			short savedVersion = readVersions.get(field.getDeclaringClass().getName());
-			SavedProperty fieldAnnotation = field.getAnnotation(SavedProperty.class);
-			if(fieldAnnotation != null && fieldAnnotation.value() <= savedVersion &&
-					(savedVersion < fieldAnnotation.removed() || fieldAnnotation.removed() == SavedProperty.VERSION_NIL)){
-				readField(field, object);
+			if(isPresent(property)){
+				readField(property, object, recycled);
+			}else if(recycled){
+				resetProperty(property, object);
 			}
 		}
 
@@ -136,8 +240,114 @@ public class SavedObjectInputStream extends FilterInputStream{
 		return object;
 	}
 
+	/**
+	 * Reads the class versions of a SavedObject and returns its class.
+	 *
+	 * @return the class of the SavedObject
+	 */
+	Class<?> readHierarchyClass(){
+		String className = readHierarchyVersions();
+		Class<?> clazz = classes.get(className);
+		if(clazz == null){
+			try{
+				clazz = Class.forName(className);
+			}catch(ClassNotFoundException e){
+				throw new ClassCastException(className);
+			}
+			classes.put(className, clazz);
+		}
+		if(DEBUG){
+			System.err.println(String.format("Reading SavedObject %s (%s)", clazz.getName(), className));
+		}
+		return clazz;
+	}
+
+	/**
+	 * Returns whether the property was written according to the class versions read so far.
+	 *
+	 * @param property the property
+	 * @return whether the property is present in the stream
+	 */
+	boolean isPresent(SavedObjectLayout.Property property){
+		return property.isPresentIn(readVersions.get(property.declaringClassName));
+	}
+
+	/**
+	 * Returns the version of a class registered in this stream.
+	 *
+	 * @param className the name of the class
+	 * @return the version of the class, or {@code null} if it has not occurred yet
+	 */
+	Short getReadVersion(String className){
+		return readVersions.get(className);
+	}
+
+	/**
+	 * Fills the {@link FillWithOwner @FillWithOwner} fields that accept the owner. On recycled instances, the other
+	 * owner fields are cleared, since they may still refer to a previous owner.
+	 */
+	@SneakyThrows(IllegalAccessException.class)
+	void fillOwner(SavedObjectLayout layout, Object object, Object owningObject, boolean recycled){
+		for(Field field : layout.ownerFields){
+			if(owningObject != null && field.getType().isInstance(owningObject)){ // a class may have multiple possible owners
+				field.set(object, owningObject);
+			}else if(recycled){
+				field.set(object, null);
+			}
+		}
+	}
+
+	/**
+	 * Resets a property of a recycled instance to {@code null}, zero or {@code false}.
+	 */
+	@SneakyThrows(IllegalAccessException.class)
+	void resetProperty(SavedObjectLayout.Property property, Object object){
+		property.field.set(object, property.defaultValue);
+	}
+
+	boolean isColumnSelected(Field field){
+		return columnFilter == null || columnFilter.test(field);
+	}
+
+	@SneakyThrows(IOException.class)
+	void skipFully(long n){
+		while(n > 0){
+			long skipped = skip(n);
+			if(skipped <= 0){
+				if(read() == -1){
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * Returns an existing instance to populate: {@code reuse} if it is exactly of the class, or else an instance from
+	 * the pool.
+	 *
+	 * @return the recycled instance, or {@code null} if a new instance has to be constructed
+	 */
+	Object recycle(Class<?> clazz, Object reuse){
+		if(reuse != null && reuse.getClass() == clazz){
+			return reuse;
+		}
+		return instancePool != null ? instancePool.acquire(clazz) : null;
+	}
+
+	@SneakyThrows({IllegalAccessException.class, InstantiationException.class})
+	Object newInstance(Class<?> clazz){
+		return clazz.newInstance();
+	}
+
+	/**
+	 * Reads the class versions of a SavedObject and registers them in this stream.
+	 *
+	 * @return the name of the class of the SavedObject
+	 */
 	@SneakyThrows({IOException.class})
-	private String readHierarchyVersions(){
+	String readHierarchyVersions(){
 		String ret = null;
 		while(readBoolean()){
 			boolean alreadyWritten = readBoolean();
@@ -162,137 +372,70 @@ public class SavedObjectInputStream extends FilterInputStream{
 		return ret;
 	}
 
-	@SuppressWarnings("unchecked")
-	@SneakyThrows({IllegalAccessException.class, ClassNotFoundException.class})
-	private void readField(Field field, Object instance){
-		if(!field.isAccessible()){
-			field.setAccessible(true);
-		}
+	/**
+	 * Reads a property into an instance. The current value of the field is only passed to the codec for reuse if the
+	 * instance is recycled; the values of new instances are set by their constructors and may be shared defaults.
+	 */
+	@SneakyThrows(IllegalAccessException.class)
+	private void readField(SavedObjectLayout.Property property, Object instance, boolean reusing){
+		Field field = property.field;
 		if(DEBUG){
 			System.err.println(String.format("Reading field %s.%s", field.getDeclaringClass().getName(), field.getName()));
 		}
 		Class<?> type = field.getType();
-		if(byte.class.isAssignableFrom(type)){
+		if(byte.class == type){
 			field.setByte(instance, readByte());
-		}else if(short.class.isAssignableFrom(type)){
+		}else if(short.class == type){
 			field.setShort(instance, readShort());
-		}else if(int.class.isAssignableFrom(type)){
+		}else if(int.class == type){
 			field.setInt(instance, readInt());
-		}else if(long.class.isAssignableFrom(type)){
+		}else if(long.class == type){
 			field.setLong(instance, readLong());
-		}else if(float.class.isAssignableFrom(type)){
+		}else if(float.class == type){
 			field.setFloat(instance, readFloat());
-		}else if(double.class.isAssignableFrom(type)){
+		}else if(double.class == type){
 			field.setDouble(instance, readDouble());
-		}else if(boolean.class.isAssignableFrom(type)){
+		}else if(boolean.class == type){
 			field.setBoolean(instance, readBoolean());
-		}else if(char.class.isAssignableFrom(type)){
+		}else if(char.class == type){
 			field.setChar(instance, readChar());
-		}else if(String.class.isAssignableFrom(type)){
-			field.set(instance, readBoolean() ? readString() : null);
-		}else if(Class.class.isAssignableFrom(type)){
-			field.set(instance, readBoolean() ? Class.forName(readString()) : null);
-		}else if(type.isEnum()){
-			field.set(instance, readBoolean() ? Enum.valueOf(type.asSubclass(Enum.class), readString()) : null);
-		}else if(Collection.class.isAssignableFrom(type)){
-			if(readBoolean()){
-				int length = readInt();
-				Type genericType = ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
-				Class<?> classE = Class.forName(genericType.getTypeName());
-				Collection coll = new ArrayList(length);
-				for(int i = 0; i < length; i++){
-					coll.add(readDynType(classE, instance));
-				}
-				field.set(instance, coll);
-			}else{
-				field.set(instance, null);
-			}
-		}else if(type.isArray()){
-			if(readBoolean()){
-				int length = readInt();
-				Class<?> classComp = type.getComponentType();
-				Object array = Array.newInstance(classComp);
-				for(int i = 0; i < length; i++){
-					Array.set(array, i, readDynType(classComp, instance));
-				}
-				field.set(instance, array);
-			}else{
-				field.set(instance, null);
-			}
-		}else if(Map.class.isAssignableFrom(type)){
-			if(readBoolean()){
-				Type[] genericTypes = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
-				Class<?> classK = Class.forName(genericTypes[0].getTypeName());
-				Class<?> classV = Class.forName(genericTypes[1].getTypeName());
-
-				int length = readInt();
-				Map map = new LinkedHashMap(length);
-				for(int i = 0; i < length; i++){
-					Object k = readDynType(classK, instance);
-					Object v = readDynType(classV, instance);
-				}
-				field.set(instance, map);
-			}else{
-				field.set(instance, null);
-			}
-		}else if(type.getDeclaredAnnotation(SavedObject.class) != null){
-			field.set(instance, readSavedObject(instance));
 		}else{
-			throw new UnsupportedOperationException("Cannot write type " + type.getName());
+			field.set(instance, property.codec.read(this, instance, reusing ? field.get(instance) : null));
 		}
 	}
 
-	@SneakyThrows(ClassNotFoundException.class)
-	private Object readDynType(Class<?> type, Object owningObject){
-		if(byte.class.isAssignableFrom(type) || Byte.class.isAssignableFrom(type)){
-			return readByte();
-		}else if(short.class.isAssignableFrom(type) || Short.class.isAssignableFrom(type)){
-			return readShort();
-		}else if(int.class.isAssignableFrom(type) || Integer.class.isAssignableFrom(type)){
-			return readInt();
-		}else if(long.class.isAssignableFrom(type) || Long.class.isAssignableFrom(type)){
-			return readLong();
-		}else if(float.class.isAssignableFrom(type) || Float.class.isAssignableFrom(type)){
-			return readFloat();
-		}else if(double.class.isAssignableFrom(type) || Double.class.isAssignableFrom(type)){
-			return readDouble();
-		}else if(boolean.class.isAssignableFrom(type) || Boolean.class.isAssignableFrom(type)){
-			return readBoolean();
-		}else if(char.class.isAssignableFrom(type) || Character.class.isAssignableFrom(type)){
-			return readChar();
-		}else if(String.class.isAssignableFrom(type)){
-			return readString();
-		}else if(Class.class.isAssignableFrom(type)){
-			return Class.forName(readString());
-		}else if(type.isEnum()){
-			return Enum.valueOf(type.asSubclass(Enum.class), readString());
-		}else if(type.getDeclaredAnnotation(SavedObject.class) != null){
-			return readSavedObject(owningObject);
-		}else if(type.isArray()){
-			if(!readBoolean()){
-				return null;
-			}
-			int length = readInt();
-			Class<?> classComp = type.getComponentType();
-			Object array = Array.newInstance(classComp);
-			for(int i = 0; i < length; i++){
-				Array.set(array, i, readDynType(classComp, owningObject));
-			}
-			return array;
-		}else{
-			throw new UnsupportedOperationException("Cannot read parameterized type " + type.getName());
+	/**
+	 * Read bytes from the wrapped stream, and flip them if byte order is small-endian.
+	 *
+	 * @return Big-endian bytes
+	 * @throws EOFException if the stream ends before {@code size} bytes are read
+	 */
+	private byte[] readBytes(int size){
+		byte[] bytes = readRaw(size);
+		if(byteOrder == ByteOrder.LITTLE_ENDIAN){
+			ArrayUtils.reverse(bytes);
 		}
+		return bytes;
 	}
 
 	/**
-	 * Read bytes from the wrapped stream, and flip them if byte order is small-endian.
+	 * Reads bytes from the wrapped stream as-is, e.g. string contents or buffers written with
+	 * {@link SavedObjectOutputStream#writeRaw(byte[])}
 	 *
-	 * @return Big-endian bytes
+	 * @param size the number of bytes to read
+	 * @return the bytes
+	 * @throws EOFException if the stream ends before {@code size} bytes are read
 	 */
 	@SneakyThrows(IOException.class)
-	private byte[] readBytes(int size){
+	byte[] readRaw(int size){
 		byte[] bytes = new byte[size];
-		read(bytes);
+		for(int offset = 0; offset < size; ){
+			int read = read(bytes, offset, size - offset); // the wrapped stream may return fewer bytes than requested
+			if(read == -1){
+				throw new EOFException();
+			}
+			offset += read;
+		}
 		return bytes;
 	}
 }
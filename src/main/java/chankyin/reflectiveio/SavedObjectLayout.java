@@ -0,0 +1,98 @@
+package chankyin.reflectiveio;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The reflective layout of a {@link SavedObject @SavedObject} class, computed once per class.
+ */
+final class SavedObjectLayout{
+	private static final Map<Class<?>, SavedObjectLayout> LAYOUTS = new ConcurrentHashMap<>();
+
+	/**
+	 * Fields annotated with {@link FillWithOwner @FillWithOwner}
+	 */
+	final Field[] ownerFields;
+	/**
+	 * All fields annotated with {@link SavedProperty @SavedProperty}, in the order of
+	 * {@link ReflectiveIoUtils#getAllFields(Class, java.util.function.Predicate)}
+	 */
+	final Property[] properties;
+	/**
+	 * The properties that are not removed, i.e. the properties written by the current version
+	 */
+	final Property[] writtenProperties;
+
+	private SavedObjectLayout(Class<?> clazz){
+		List<Field> ownerFields = new ArrayList<>();
+		List<Property> properties = new ArrayList<>();
+		List<Property> writtenProperties = new ArrayList<>();
+		for(Field field : ReflectiveIoUtils.getAllFields(clazz, s -> s.getDeclaredAnnotation(SavedObject.class) != null)){
+			if(field.getDeclaredAnnotation(FillWithOwner.class) != null){
+				field.setAccessible(true);
+				ownerFields.add(field);
+			}
+			SavedProperty annotation = field.getAnnotation(SavedProperty.class);
+			if(annotation != null){
+				field.setAccessible(true);
+				Property property = new Property(field, annotation);
+				properties.add(property);
+				if(annotation.removed() == SavedProperty.VERSION_NIL){
+					writtenProperties.add(property);
+				}
+			}
+		}
+		this.ownerFields = ownerFields.toArray(new Field[ownerFields.size()]);
+		this.properties = properties.toArray(new Property[properties.size()]);
+		this.writtenProperties = writtenProperties.toArray(new Property[writtenProperties.size()]);
+	}
+
+	public static SavedObjectLayout of(Class<?> clazz){
+		SavedObjectLayout layout = LAYOUTS.get(clazz);
+		if(layout == null){
+			layout = new SavedObjectLayout(clazz);
+			SavedObjectLayout previous = LAYOUTS.putIfAbsent(clazz, layout);
+			if(previous != null){
+				layout = previous;
+			}
+		}
+		return layout;
+	}
+
+	static final class Property{
+		final Field field;
+		final String declaringClassName;
+		final SavedProperty annotation;
+		/**
+		 * The codec of the field value, or the codec of the boxed value if the field is primitive
+		 */
+		final TypeCodec codec;
+		/**
+		 * The value of the field in a zeroed instance, i.e. {@code null}, or zero or {@code false} boxed
+		 */
+		final Object defaultValue;
+
+		private Property(Field field, SavedProperty annotation){
+			this.field = field;
+			this.annotation = annotation;
+			declaringClassName = field.getDeclaringClass().getName();
+			codec = field.getType().isPrimitive() ? TypeCodecs.forType(field.getType()) : TypeCodecs.forField(field);
+			defaultValue = field.getType().isPrimitive() ? Array.get(Array.newInstance(field.getType(), 1), 0) : null;
+		}
+
+		/**
+		 * Returns whether this property was written by the specified version of its declaring class.
+		 *
+		 * @param savedVersion the version of the declaring class in the stream
+		 * @return whether this property is present in the stream
+		 */
+		public boolean isPresentIn(short savedVersion){
+			return annotation.value() <= savedVersion &&
+					(savedVersion < annotation.removed() || annotation.removed() == SavedProperty.VERSION_NIL);
+		}
+	}
+}
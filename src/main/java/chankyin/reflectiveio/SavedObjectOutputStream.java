@@ -1,16 +1,15 @@
 package chankyin.reflectiveio;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.lang.reflect.Array;
 import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
 import java.nio.ByteOrder;
-import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import lombok.NonNull;
 import lombok.SneakyThrows;
@@ -22,6 +21,14 @@ import static chankyin.reflectiveio.ReflectiveIoUtils.DEBUG;
 public class SavedObjectOutputStream extends FilterOutputStream{
 	private final ByteOrder byteOrder;
 	private final Map<String, Short> writtenVersions = new LinkedHashMap<>();
+	/**
+	 * Number of versions written with their class names, which may exceed the size of {@link #writtenVersions} if
+	 * back-references are disabled
+	 */
+	private int fullVersionCount = 0;
+	private boolean backReferences = true;
+	private EncodedObjectCache encodedObjectCache;
+	private SavedObjectSchema schema;
 
 	public SavedObjectOutputStream(@NonNull OutputStream out){
 		this(out, ByteOrder.BIG_ENDIAN);
@@ -32,6 +39,27 @@ public class SavedObjectOutputStream extends FilterOutputStream{
 		this.byteOrder = byteOrder;
 	}
 
+	/**
+	 * Sets the cache of encoded bytes of immutable SavedObjects. The cache may be shared between streams.
+	 *
+	 * @param encodedObjectCache the cache, or {@code null} to encode all SavedObjects
+	 * @see SavedObject#immutable()
+	 * @see EncodedObjectCache#markImmutable(Object)
+	 */
+	public void setEncodedObjectCache(EncodedObjectCache encodedObjectCache){
+		this.encodedObjectCache = encodedObjectCache;
+	}
+
+	/**
+	 * Sets the schema to register the classes of written SavedObjects in. The schema may be shared between streams.
+	 *
+	 * @param schema the schema, or {@code null} to not collect a schema
+	 * @see GenericRecordReader
+	 */
+	public void setSchema(SavedObjectSchema schema){
+		this.schema = schema;
+	}
+
 	public void writeByte(byte b){
 		writeBytes(b);
 	}
@@ -84,11 +112,36 @@ public class SavedObjectOutputStream extends FilterOutputStream{
 		write(bytes); // do not make it byte-order dependent!
 	}
 
+	/**
+	 * Captures a {@link SavedObjectSnapshot} of the object on the calling thread, then writes it on the executor.
+	 * <p>This stream must not be used by other threads until the returned future completes.</p>
+	 *
+	 * @param object   the SavedObject to write, or {@code null}
+	 * @param executor the executor to encode and write the snapshot on
+	 * @return a future completed when the snapshot is written
+	 */
+	public CompletableFuture<Void> writeSavedObjectAsync(Object object, @NonNull Executor executor){
+		Object snapshot = object == null ? null : SavedObjectSnapshot.capture(object);
+		return CompletableFuture.runAsync(() -> writeSavedObject(snapshot), executor);
+	}
+
 	public void writeSavedObject(Object object){
 		if(object == null){
 			writeBoolean(false);
 			return;
 		}
+		if(object instanceof SavedObjectSnapshot){
+			writeSnapshot((SavedObjectSnapshot) object);
+			return;
+		}
+		if(encodedObjectCache != null && encodedObjectCache.isImmutable(object)){
+			writeCached(object);
+			return;
+		}
+		writeSavedObjectEncoded(object);
+	}
+
+	private void writeSavedObjectEncoded(Object object){
 		if(DEBUG){
 			System.err.println("Writing SavedObject " + object.getClass().getName());
 		}
@@ -100,14 +153,53 @@ public class SavedObjectOutputStream extends FilterOutputStream{
 		if(object instanceof Serialized){
 			((Serialized) object).preSerialize();
 		}
-		ReflectiveIoUtils.getAllFields(object.getClass(), s -> s.getDeclaredAnnotation(SavedObject.class) != null)
-				.stream().filter(field -> {
-			SavedProperty annotation = field.getAnnotation(SavedProperty.class);
-			return annotation != null && annotation.removed() == SavedProperty.VERSION_NIL;
-		}).forEachOrdered(field -> writeField(field, object));
+		for(SavedObjectLayout.Property property : SavedObjectLayout.of(object.getClass()).writtenProperties){
+			writeField(property, object);
+		}
+	}
+
+	/**
+	 * Copies the cached encoding of an immutable SavedObject, encoding it first if it is not cached.
+	 * <p>Cached encodings never contain back-references to class versions, since they are copied into streams with
+	 * different version tables. The versions they contain are registered in this stream as if they were written by
+	 * it, which is how the reader registers them.</p>
+	 */
+	private void writeCached(Object object){
+		EncodedObjectCache.Entry entry = encodedObjectCache.get(object, byteOrder);
+		if(entry == null){
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			SavedObjectOutputStream encoder = new SavedObjectOutputStream(buffer, byteOrder);
+			encoder.backReferences = false;
+			encoder.encodedObjectCache = encodedObjectCache;
+			encoder.writeSavedObjectEncoded(object);
+			entry = encodedObjectCache.put(object, byteOrder, buffer.toByteArray(), encoder.writtenVersions);
+		}
+		if(DEBUG){
+			System.err.println("Writing cached SavedObject " + object.getClass().getName());
+		}
+		writeRaw(entry.bytes);
+		if(schema != null){
+			schema.registerClassNames(entry.classNames, entry.versions, object.getClass().getClassLoader());
+		}
+		for(int i = 0; i < entry.classNames.length; i++){
+			writtenVersions.putIfAbsent(entry.classNames[i], entry.versions[i]);
+		}
+		fullVersionCount += entry.classNames.length;
 	}
 
-	private void writeHierarchyVersions(Class<?> bottom){
+	private void writeSnapshot(SavedObjectSnapshot snapshot){
+		if(DEBUG){
+			System.err.println("Writing SavedObjectSnapshot " + snapshot.clazz.getName());
+		}
+		writeBoolean(true);
+		writeHierarchyVersions(snapshot.clazz);
+		SavedObjectLayout.Property[] properties = SavedObjectLayout.of(snapshot.clazz).writtenProperties;
+		for(int i = 0; i < properties.length; i++){
+			properties[i].codec.write(this, snapshot.values[i]);
+		}
+	}
+
+	void writeHierarchyVersions(Class<?> bottom){
 		if(bottom.getDeclaredAnnotation(SavedObject.class) == null){
 			throw new IllegalArgumentException("Cannot write hierarchy versions for non-@SavedObject");
 		}
@@ -121,162 +213,91 @@ public class SavedObjectOutputStream extends FilterOutputStream{
 			if(alreadyWritten){
 				return;
 			}
+			if(schema != null && clazz.getDeclaredAnnotation(SavedObject.class) != null){
+				schema.register(clazz, annotation.value()); // the version the reader will look the class up with
+			}
 		}
 		writeBoolean(false);
 	}
 
+	/**
+	 * Returns the number of versions written with their class names so far. A reader that skips a part of the stream
+	 * in which this number did not change does not miss any version registrations.
+	 *
+	 * @return the number of versions written with their class names
+	 */
+	int getFullVersionCount(){
+		return fullVersionCount;
+	}
+
+	ByteOrder getByteOrder(){
+		return byteOrder;
+	}
+
+	/**
+	 * Redirects further output to another stream.
+	 *
+	 * @param out the stream to write to
+	 * @return the stream previously written to
+	 */
+	OutputStream redirect(OutputStream out){
+		OutputStream previous = this.out;
+		this.out = out;
+		return previous;
+	}
+
 	private boolean writeVersion(String className, short version){
-		if(writtenVersions.containsKey(className)){
+		if(backReferences && writtenVersions.containsKey(className)){
 			writeBoolean(true);
 			writeShort((short) ReflectiveIoUtils.searchIndexInIterator(writtenVersions.keySet().iterator(), className));
 			return true;
 		}
-		writtenVersions.put(className, version);
+		writtenVersions.putIfAbsent(className, version);
+		fullVersionCount++;
 		writeBoolean(false);
 		writeString(className);
 		writeShort(version);
 		return false;
 	}
 
-	@SneakyThrows({IllegalAccessException.class, ClassNotFoundException.class})
-	private void writeField(Field field, Object instance){
+	@SneakyThrows(IllegalAccessException.class)
+	private void writeField(SavedObjectLayout.Property property, Object instance){
+		Field field = property.field;
 		if(DEBUG){
 			System.err.println(String.format("Writing field %s.%s", field.getDeclaringClass().getName(), field.getName()));
 		}
 
-		if(!field.isAccessible()){
-			field.setAccessible(true);
-		}
 		Class<?> type = field.getType();
-		if(byte.class.isAssignableFrom(type) || Byte.class.isAssignableFrom(type)){
+		if(byte.class == type){
 			writeByte(field.getByte(instance));
-		}else if(short.class.isAssignableFrom(type) || Short.class.isAssignableFrom(type)){
+		}else if(short.class == type){
 			writeShort(field.getShort(instance));
-		}else if(int.class.isAssignableFrom(type) || Integer.class.isAssignableFrom(type)){
+		}else if(int.class == type){
 			writeInt(field.getInt(instance));
-		}else if(long.class.isAssignableFrom(type) || Long.class.isAssignableFrom(type)){
+		}else if(long.class == type){
 			writeLong(field.getLong(instance));
-		}else if(float.class.isAssignableFrom(type) || Float.class.isAssignableFrom(type)){
+		}else if(float.class == type){
 			writeFloat(field.getFloat(instance));
-		}else if(double.class.isAssignableFrom(type) || Double.class.isAssignableFrom(type)){
+		}else if(double.class == type){
 			writeDouble(field.getDouble(instance));
-		}else if(boolean.class.isAssignableFrom(type) || Boolean.class.isAssignableFrom(type)){
+		}else if(boolean.class == type){
 			writeBoolean(field.getBoolean(instance));
-		}else if(char.class.isAssignableFrom(type) || Character.class.isAssignableFrom(type)){
+		}else if(char.class == type){
 			writeChar(field.getChar(instance));
-		}else if(String.class.isAssignableFrom(type)){
-			String string = (String) field.get(instance);
-			if(string != null){
-				writeBoolean(true);
-				writeString(string);
-			}else{
-				writeBoolean(false);
-			}
-		}else if(Class.class.isAssignableFrom(type)){
-			Class clazz = (Class) field.get(instance);
-			if(clazz != null){
-				writeBoolean(true);
-				writeString(clazz.getName());
-			}else{
-				writeBoolean(false);
-			}
-		}else if(type.isEnum()){
-			Enum anEnum = (Enum) field.get(instance);
-			if(anEnum != null){
-				writeBoolean(true);
-				writeString(anEnum.name());
-			}else{
-				writeBoolean(false);
-			}
-		}else if(Collection.class.isAssignableFrom(type)){
-			Type genericType = ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
-			Class<?> classE = Class.forName(genericType.getTypeName());
-			Collection coll = (Collection) field.get(instance);
-			if(coll != null){
-				writeBoolean(true);
-				writeInt(coll.size());
-				for(Object o : coll){
-					writeDynType(classE, o);
-				}
-			}else{
-				writeBoolean(false);
-			}
-		}else if(type.isArray()){
-			Class<?> classComp = type.getComponentType();
-			Object array = field.get(instance);
-			if(array != null){
-				writeBoolean(true);
-				int length = Array.getLength(array);
-				writeInt(length);
-				for(int i = 0; i < length; i++){
-					writeDynType(classComp, Array.get(array, i));
-				}
-			}else{
-				writeBoolean(false);
-			}
-		}else if(Map.class.isAssignableFrom(type)){
-			Type[] genericTypes = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
-			Class<?> classK = Class.forName(genericTypes[0].getTypeName());
-			Class<?> classV = Class.forName(genericTypes[1].getTypeName());
-			Map map = (Map) field.get(instance);
-			if(map != null){
-				writeBoolean(true);
-				writeInt(map.size());
-				for(Object o : map.entrySet()){
-					Map.Entry entry = (Map.Entry) o;
-					writeDynType(classK, entry.getKey());
-					writeDynType(classV, entry.getValue());
-				}
-			}else{
-				writeBoolean(false);
-			}
-		}else if(type.getDeclaredAnnotation(SavedObject.class) != null){
-			writeSavedObject(field.get(instance));
 		}else{
-			throw new UnsupportedOperationException("Cannot write type " + type.getName());
+			property.codec.write(this, field.get(instance));
 		}
 	}
 
-	private void writeDynType(Class<?> type, Object value){
-		if(byte.class.isAssignableFrom(type) || Byte.class.isAssignableFrom(type)){
-			writeByte((Byte) value);
-		}else if(short.class.isAssignableFrom(type) || Short.class.isAssignableFrom(type)){
-			writeShort((Short) value);
-		}else if(int.class.isAssignableFrom(type) || Integer.class.isAssignableFrom(type)){
-			writeInt((Integer) value);
-		}else if(long.class.isAssignableFrom(type) || Long.class.isAssignableFrom(type)){
-			writeLong((Long) value);
-		}else if(float.class.isAssignableFrom(type) || Float.class.isAssignableFrom(type)){
-			writeFloat((Float) value);
-		}else if(double.class.isAssignableFrom(type) || Double.class.isAssignableFrom(type)){
-			writeDouble((Double) value);
-		}else if(boolean.class.isAssignableFrom(type) || Boolean.class.isAssignableFrom(type)){
-			writeBoolean((Boolean) value);
-		}else if(char.class.isAssignableFrom(type) || Character.class.isAssignableFrom(type)){
-			writeChar((Character) value);
-		}else if(String.class.isAssignableFrom(type)){
-			writeString((String) value);
-		}else if(Class.class.isAssignableFrom(type)){
-			writeString(((Class) value).getName());
-		}else if(type.isEnum()){
-			writeString(((Enum) value).name());
-		}else if(type.getDeclaredAnnotation(SavedObject.class) != null){
-			writeSavedObject(value);
-		}else if(type.isArray()){
-			if(value != null){
-				writeBoolean(true);
-				Class<?> classComp = type.getComponentType();
-				int length = Array.getLength(value);
-				writeInt(length);
-				for(int i = 0; i < length; i++){
-					writeDynType(classComp, Array.get(value, i));
-				}
-			}else{
-				writeBoolean(false);
-			}
-		}else{
-			throw new UnsupportedOperationException("Cannot write parameterized type " + type.getName());
-		}
+	/**
+	 * Writes bytes to the wrapped output stream as-is, without the per-byte writes of
+	 * {@link java.io.FilterOutputStream#write(byte[])}
+	 *
+	 * @param bytes the bytes to write
+	 */
+	@SneakyThrows(IOException.class)
+	void writeRaw(byte[] bytes){
+		out.write(bytes);
 	}
 
 	/**
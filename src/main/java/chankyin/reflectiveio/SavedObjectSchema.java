@@ -0,0 +1,353 @@
+package chankyin.reflectiveio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.NonNull;
+
+/**
+ * The {@link SavedProperty @SavedProperty} layouts and field types of the SavedObject classes in a stream, which lets
+ * {@link GenericRecordReader} decode the stream without loading the classes.
+ * <p>A schema is collected by {@link SavedObjectOutputStream#setSchema(SavedObjectSchema)} while writing, and can be
+ * stored next to the stream with {@link #writeTo(SavedObjectOutputStream)}. Schemas are keyed by class name and
+ * version, so one schema can describe streams written by different versions of a class.</p>
+ * <p>This class is thread-safe and can be shared between streams.</p>
+ */
+public class SavedObjectSchema{
+	private final Map<String, Map<Short, ClassSchema>> classes = new LinkedHashMap<>();
+
+	/**
+	 * Adds the current layout of a SavedObject class under the version of its annotation, unless it is already
+	 * registered.
+	 *
+	 * @param clazz the class annotated with {@link SavedObject @SavedObject}
+	 * @return the schema of the class
+	 */
+	public ClassSchema register(@NonNull Class<?> clazz){
+		SavedObject annotation = clazz.getDeclaredAnnotation(SavedObject.class);
+		if(annotation == null){
+			throw new IllegalArgumentException("Cannot register non-@SavedObject " + clazz.getName());
+		}
+		return register(clazz, annotation.value());
+	}
+
+	/**
+	 * Adds the current layout of a SavedObject class under the version recorded for it in a stream, unless it is
+	 * already registered. Streams record the version of the class at the bottom of the hierarchy for all its
+	 * superclasses, so a superclass first written through a subclass is looked up by the version of the subclass.
+	 *
+	 * @param clazz   the class annotated with {@link SavedObject @SavedObject}
+	 * @param version the version written for the class
+	 * @return the schema of the class
+	 */
+	synchronized ClassSchema register(Class<?> clazz, short version){
+		ClassSchema schema = get(clazz.getName(), version);
+		if(schema == null){
+			SavedObjectLayout.Property[] written = SavedObjectLayout.of(clazz).writtenProperties;
+			Property[] properties = new Property[written.length];
+			for(int i = 0; i < written.length; i++){
+				properties[i] = new Property(written[i].declaringClassName, written[i].field.getName(), FieldType.of(written[i].codec));
+			}
+			schema = new ClassSchema(clazz.getName(), version, properties);
+			add(schema);
+		}
+		return schema;
+	}
+
+	/**
+	 * Registers the SavedObject classes among the named classes under the versions written for them, unless they are
+	 * already registered.
+	 */
+	synchronized void registerClassNames(String[] classNames, short[] versions, ClassLoader loader){
+		for(int i = 0; i < classNames.length; i++){
+			if(get(classNames[i], versions[i]) != null){
+				continue;
+			}
+			try{
+				Class<?> clazz = Class.forName(classNames[i], false, loader);
+				if(clazz.getDeclaredAnnotation(SavedObject.class) != null){
+					register(clazz, versions[i]);
+				}
+			}catch(ClassNotFoundException e){
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private void add(ClassSchema schema){
+		classes.computeIfAbsent(schema.className, k -> new HashMap<>()).putIfAbsent(schema.version, schema);
+	}
+
+	/**
+	 * Returns the layout of a class version.
+	 *
+	 * @param className the name of the class
+	 * @param version   the version of the class in the stream
+	 * @return the schema of the class version, or {@code null} if it is unknown
+	 */
+	public synchronized ClassSchema get(@NonNull String className, short version){
+		Map<Short, ClassSchema> versions = classes.get(className);
+		return versions == null ? null : versions.get(version);
+	}
+
+	public synchronized List<ClassSchema> getClasses(){
+		List<ClassSchema> list = new ArrayList<>();
+		for(Map<Short, ClassSchema> versions : classes.values()){
+			list.addAll(versions.values());
+		}
+		return list;
+	}
+
+	/**
+	 * Writes this schema in the format described in the README.
+	 *
+	 * @param out the stream to write to
+	 */
+	public synchronized void writeTo(@NonNull SavedObjectOutputStream out){
+		for(ClassSchema schema : getClasses()){
+			out.writeBoolean(true);
+			out.writeString(schema.className);
+			out.writeShort(schema.version);
+			for(Property property : schema.properties){
+				out.writeBoolean(true);
+				out.writeString(property.declaringClassName);
+				out.writeString(property.name);
+				property.type.writeTo(out);
+			}
+			out.writeBoolean(false);
+		}
+		out.writeBoolean(false);
+	}
+
+	/**
+	 * Reads a schema written by {@link #writeTo(SavedObjectOutputStream)}.
+	 *
+	 * @param in the stream to read from
+	 * @return the schema
+	 */
+	public static SavedObjectSchema readFrom(@NonNull SavedObjectInputStream in){
+		SavedObjectSchema schema = new SavedObjectSchema();
+		while(in.readBoolean()){
+			String className = in.readString();
+			short version = in.readShort();
+			List<Property> properties = new ArrayList<>();
+			while(in.readBoolean()){
+				String declaringClassName = in.readString();
+				String name = in.readString();
+				properties.add(new Property(declaringClassName, name, FieldType.readFrom(in)));
+			}
+			schema.add(new ClassSchema(className, version, properties.toArray(new Property[properties.size()])));
+		}
+		return schema;
+	}
+
+	/**
+	 * The properties written by one version of a SavedObject class, in stream order.
+	 */
+	public static final class ClassSchema{
+		final String className;
+		final short version;
+		final Property[] properties;
+		private final Map<String, Integer> indices = new HashMap<>();
+
+		private ClassSchema(String className, short version, Property[] properties){
+			this.className = className;
+			this.version = version;
+			this.properties = properties;
+			for(int i = 0; i < properties.length; i++){
+				indices.putIfAbsent(properties[i].name, i); // superclass fields come first
+			}
+		}
+
+		public String getClassName(){
+			return className;
+		}
+
+		public short getVersion(){
+			return version;
+		}
+
+		public List<Property> getProperties(){
+			return Collections.unmodifiableList(Arrays.asList(properties));
+		}
+
+		/**
+		 * Returns the position of a property in {@link #getProperties()}. If a subclass declares a field with the same
+		 * name as a superclass, the field of the superclass is found.
+		 *
+		 * @param name the field name
+		 * @return the position of the property, or -1 if it is not written by this version
+		 */
+		public int indexOf(String name){
+			Integer index = indices.get(name);
+			return index == null ? -1 : index;
+		}
+
+		@Override
+		public String toString(){
+			return className + "#" + version;
+		}
+	}
+
+	public static final class Property{
+		final String declaringClassName;
+		final String name;
+		final FieldType type;
+
+		private Property(String declaringClassName, String name, FieldType type){
+			this.declaringClassName = declaringClassName;
+			this.name = name;
+			this.type = type;
+		}
+
+		public String getDeclaringClassName(){
+			return declaringClassName;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public FieldType getType(){
+			return type;
+		}
+
+		@Override
+		public String toString(){
+			return name + ": " + type;
+		}
+	}
+
+	/**
+	 * The encoding of a property value, as compiled by the field codec.
+	 */
+	public static final class FieldType{
+		public enum Kind{
+			BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, BOOLEAN, CHAR, STRING, CLASS, ENUM,
+			/**
+			 * A SavedObject, which contains its own non-null flag
+			 */
+			SAVED_OBJECT,
+			/**
+			 * A value preceded by a BOOLEAN non-null flag
+			 */
+			NULLABLE,
+			ARRAY,
+			COLLECTION,
+			/**
+			 * A key type and a value type
+			 */
+			MAP,
+			/**
+			 * A {@link Columnar @Columnar} collection of SavedObjects
+			 */
+			COLUMNAR
+		}
+
+		private static final FieldType[] NO_ARGUMENTS = new FieldType[0];
+
+		final Kind kind;
+		final FieldType[] arguments;
+
+		private FieldType(Kind kind, FieldType... arguments){
+			this.kind = kind;
+			this.arguments = arguments;
+		}
+
+		static FieldType of(TypeCodec codec){
+			if(codec instanceof TypeCodecs.ScalarCodec){
+				return new FieldType(Kind.valueOf(((TypeCodecs.ScalarCodec) codec).name()), NO_ARGUMENTS);
+			}else if(codec instanceof TypeCodecs.EnumCodec){
+				return new FieldType(Kind.ENUM, NO_ARGUMENTS);
+			}else if(codec instanceof TypeCodecs.SavedObjectCodec){
+				return new FieldType(Kind.SAVED_OBJECT, NO_ARGUMENTS);
+			}else if(codec instanceof TypeCodecs.NullableCodec){
+				return new FieldType(Kind.NULLABLE, of(((TypeCodecs.NullableCodec) codec).delegate));
+			}else if(codec instanceof TypeCodecs.ArrayCodec){
+				return new FieldType(Kind.ARRAY, of(((TypeCodecs.ArrayCodec) codec).componentCodec));
+			}else if(codec instanceof TypeCodecs.CollectionCodec){
+				return new FieldType(Kind.COLLECTION, of(((TypeCodecs.CollectionCodec) codec).elementCodec));
+			}else if(codec instanceof TypeCodecs.MapCodec){
+				TypeCodecs.MapCodec map = (TypeCodecs.MapCodec) codec;
+				return new FieldType(Kind.MAP, of(map.keyCodec), of(map.valueCodec));
+			}else if(codec instanceof ColumnarCodec){
+				return new FieldType(Kind.COLUMNAR, NO_ARGUMENTS);
+			}
+			throw new UnsupportedOperationException("Cannot describe codec " + codec);
+		}
+
+		public Kind getKind(){
+			return kind;
+		}
+
+		/**
+		 * Returns the nested type at the specified position: the value type of {@link Kind#NULLABLE}, the component
+		 * type of {@link Kind#ARRAY}, the element type of {@link Kind#COLLECTION}, or the key (0) and value (1) types
+		 * of {@link Kind#MAP}.
+		 *
+		 * @param index the position
+		 * @return the nested type
+		 */
+		public FieldType getArgument(int index){
+			return arguments[index];
+		}
+
+		/**
+		 * Returns the number of bytes of this type, or -1 if its size depends on the value.
+		 *
+		 * @return the fixed size in bytes, or -1
+		 */
+		int fixedSize(){
+			switch(kind){
+				case BYTE:
+				case BOOLEAN:
+					return 1;
+				case SHORT:
+				case CHAR:
+					return 2;
+				case INT:
+				case FLOAT:
+					return 4;
+				case LONG:
+				case DOUBLE:
+					return 8;
+				default:
+					return -1;
+			}
+		}
+
+		private void writeTo(SavedObjectOutputStream out){
+			out.writeByte((byte) kind.ordinal());
+			for(FieldType argument : arguments){
+				argument.writeTo(out);
+			}
+		}
+
+		private static FieldType readFrom(SavedObjectInputStream in){
+			Kind kind = Kind.values()[in.readByte()];
+			int count = kind == Kind.MAP ? 2 : kind == Kind.NULLABLE || kind == Kind.ARRAY || kind == Kind.COLLECTION ? 1 : 0;
+			FieldType[] arguments = count == 0 ? NO_ARGUMENTS : new FieldType[count];
+			for(int i = 0; i < count; i++){
+				arguments[i] = readFrom(in);
+			}
+			return new FieldType(kind, arguments);
+		}
+
+		@Override
+		public String toString(){
+			if(arguments.length == 0){
+				return kind.name();
+			}
+			StringBuilder builder = new StringBuilder(kind.name()).append('<');
+			for(int i = 0; i < arguments.length; i++){
+				builder.append(i == 0 ? "" : ", ").append(arguments[i]);
+			}
+			return builder.append('>').toString();
+		}
+	}
+}
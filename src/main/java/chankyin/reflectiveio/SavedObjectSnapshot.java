@@ -0,0 +1,61 @@
+package chankyin.reflectiveio;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+
+/**
+ * A copy of the {@link SavedProperty @SavedProperty} values of a SavedObject graph, taken at one point in time.
+ * <p>Capturing only copies field values, collections and arrays, without encoding anything, so it is much shorter than
+ * {@link SavedObjectOutputStream#writeSavedObject(Object)}. Mutating threads only need to be paused while capturing;
+ * the snapshot can then be written on any thread while the live objects keep changing.</p>
+ * <p>Values of immutable types (strings, boxed primitives, enums and classes) are shared with the live objects.</p>
+ */
+public final class SavedObjectSnapshot{
+	final Class<?> clazz;
+	/**
+	 * Captured values of {@link SavedObjectLayout#writtenProperties}
+	 */
+	final Object[] values;
+
+	private SavedObjectSnapshot(Class<?> clazz, Object[] values){
+		this.clazz = clazz;
+		this.values = values;
+	}
+
+	/**
+	 * Captures the current state of a SavedObject and all SavedObjects reachable from its properties.
+	 * {@link Serialized#preSerialize()} is called on the live objects during capture.
+	 *
+	 * @param object the SavedObject to capture
+	 * @return the snapshot
+	 */
+	@SneakyThrows(IllegalAccessException.class)
+	public static SavedObjectSnapshot capture(@NonNull Object object){
+		if(object instanceof SavedObjectSnapshot){
+			return (SavedObjectSnapshot) object;
+		}
+		Class<?> clazz = object.getClass();
+		if(clazz.getDeclaredAnnotation(SavedObject.class) == null){
+			throw new IllegalArgumentException("Cannot capture non-@SavedObject");
+		}
+		if(object instanceof Serialized){
+			((Serialized) object).preSerialize();
+		}
+		SavedObjectLayout.Property[] properties = SavedObjectLayout.of(clazz).writtenProperties;
+		Object[] values = new Object[properties.length];
+		for(int i = 0; i < properties.length; i++){
+			values[i] = properties[i].codec.capture(properties[i].field.get(object));
+		}
+		return new SavedObjectSnapshot(clazz, values);
+	}
+
+	/**
+	 * Writes this snapshot, in the same format as {@link SavedObjectOutputStream#writeSavedObject(Object)} would have
+	 * written the captured object.
+	 *
+	 * @param out the stream to write to
+	 */
+	public void writeTo(@NonNull SavedObjectOutputStream out){
+		out.writeSavedObject(this);
+	}
+}
@@ -0,0 +1,43 @@
+package chankyin.reflectiveio;
+
+/**
+ * Reads and writes values of one compiled generic type. Instances are created by {@link TypeCodecs} and are shared
+ * between streams, so they must not hold per-stream state.
+ */
+interface TypeCodec{
+	public void write(SavedObjectOutputStream out, Object value);
+
+	/**
+	 * Reads a value from the stream.
+	 *
+	 * @param in     the stream to read from
+	 * @param owner  the object to fill into {@link FillWithOwner @FillWithOwner} fields of nested SavedObjects
+	 * @param reuse  the previous value at the same position, which may be populated and returned instead of
+	 *               allocating a new value, or {@code null}. It is only non-null under an instance that is being
+	 *               reused, so values set by constructors of new instances are never modified
+	 * @return the value read
+	 */
+	public Object read(SavedObjectInputStream in, Object owner, Object reuse);
+
+	/**
+	 * Copies a value into a form that is no longer affected by changes to the live value, and that can still be
+	 * passed to {@link #write(SavedObjectOutputStream, Object)}.
+	 *
+	 * @param value the live value
+	 * @return the captured value
+	 * @see SavedObjectSnapshot
+	 */
+	public default Object capture(Object value){
+		return value;
+	}
+
+	/**
+	 * Returns whether {@link #read(SavedObjectInputStream, Object, Object)} makes any use of the {@code reuse}
+	 * argument, so that callers can skip collecting previous values otherwise.
+	 *
+	 * @return whether previous values can be reused
+	 */
+	public default boolean reusesInstances(){
+		return false;
+	}
+}
@@ -0,0 +1,577 @@
+package chankyin.reflectiveio;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+
+/**
+ * Compiles generic field types into trees of {@link TypeCodec}s. Each type is compiled once and cached.
+ * <p>Values directly held by a field are preceded by a BOOLEAN non-null flag unless they are primitives or
+ * SavedObjects. Nested values are only preceded by the flag if they are arrays, collections or maps.</p>
+ */
+final class TypeCodecs{
+	private static final Map<Type, TypeCodec> ELEMENT_CODECS = new ConcurrentHashMap<>();
+	private static final Map<Field, TypeCodec> FIELD_CODECS = new ConcurrentHashMap<>();
+
+	private TypeCodecs(){
+	}
+
+	/**
+	 * Returns the codec for the value held by a non-primitive field.
+	 *
+	 * @param field the field
+	 * @return the codec for the field value
+	 */
+	public static TypeCodec forField(Field field){
+		TypeCodec codec = FIELD_CODECS.get(field);
+		if(codec == null){
+			// not computeIfAbsent(), because compiling nested types updates ELEMENT_CODECS recursively
+			codec = field.getDeclaredAnnotation(Columnar.class) != null ? compileColumnar(field) : compile(field.getGenericType());
+			if(!(codec instanceof SavedObjectCodec) && !(codec instanceof NullableCodec)){
+				codec = new NullableCodec(codec);
+			}
+			TypeCodec previous = FIELD_CODECS.putIfAbsent(field, codec);
+			if(previous != null){
+				codec = previous;
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * Returns the codec for a value nested in an array, a collection or a map.
+	 *
+	 * @param type the generic type of the value
+	 * @return the codec for the value
+	 */
+	public static TypeCodec forType(Type type){
+		TypeCodec codec = ELEMENT_CODECS.get(type);
+		if(codec == null){
+			codec = compile(type);
+			if(codec instanceof ArrayCodec || codec instanceof CollectionCodec || codec instanceof MapCodec){
+				codec = new NullableCodec(codec);
+			}
+			TypeCodec previous = ELEMENT_CODECS.putIfAbsent(type, codec);
+			if(previous != null){
+				codec = previous;
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * Returns the class that values of the generic type are instances of.
+	 *
+	 * @param type the generic type
+	 * @return the erasure of the type
+	 */
+	public static Class<?> erasure(Type type){
+		if(type instanceof Class){
+			return (Class<?>) type;
+		}else if(type instanceof ParameterizedType){
+			return (Class<?>) ((ParameterizedType) type).getRawType();
+		}else if(type instanceof GenericArrayType){
+			return Array.newInstance(erasure(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+		}else if(type instanceof WildcardType || type instanceof TypeVariable){
+			return erasure(bound(type));
+		}
+		throw new UnsupportedOperationException("Cannot resolve type " + type.getTypeName());
+	}
+
+	private static Type bound(Type type){
+		if(type instanceof WildcardType){
+			WildcardType wildcard = (WildcardType) type;
+			// values of List<? super Integer> are written and read back as Integer
+			return wildcard.getLowerBounds().length != 0 ? wildcard.getLowerBounds()[0] : wildcard.getUpperBounds()[0];
+		}
+		return ((TypeVariable<?>) type).getBounds()[0];
+	}
+
+	private static TypeCodec compile(Type type){
+		if(type instanceof WildcardType || type instanceof TypeVariable){
+			return compile(bound(type));
+		}
+		if(type instanceof GenericArrayType){
+			Type component = ((GenericArrayType) type).getGenericComponentType();
+			return new ArrayCodec(erasure(component), forType(component));
+		}
+
+		Class<?> clazz = erasure(type);
+		if(clazz == byte.class || clazz == Byte.class){
+			return ScalarCodec.BYTE;
+		}else if(clazz == short.class || clazz == Short.class){
+			return ScalarCodec.SHORT;
+		}else if(clazz == int.class || clazz == Integer.class){
+			return ScalarCodec.INT;
+		}else if(clazz == long.class || clazz == Long.class){
+			return ScalarCodec.LONG;
+		}else if(clazz == float.class || clazz == Float.class){
+			return ScalarCodec.FLOAT;
+		}else if(clazz == double.class || clazz == Double.class){
+			return ScalarCodec.DOUBLE;
+		}else if(clazz == boolean.class || clazz == Boolean.class){
+			return ScalarCodec.BOOLEAN;
+		}else if(clazz == char.class || clazz == Character.class){
+			return ScalarCodec.CHAR;
+		}else if(String.class.isAssignableFrom(clazz)){
+			return ScalarCodec.STRING;
+		}else if(Class.class.isAssignableFrom(clazz)){
+			return ScalarCodec.CLASS;
+		}else if(clazz.isEnum()){
+			return new EnumCodec(clazz.asSubclass(Enum.class));
+		}else if(clazz.isArray()){
+			return new ArrayCodec(clazz.getComponentType(), forType(clazz.getComponentType()));
+		}else if(Collection.class.isAssignableFrom(clazz)){
+			return new CollectionCodec(type, forType(typeArguments(type, clazz)[0]));
+		}else if(Map.class.isAssignableFrom(clazz)){
+			Type[] arguments = typeArguments(type, clazz);
+			return new MapCodec(type, forType(arguments[0]), forType(arguments[1]));
+		}else if(clazz.getDeclaredAnnotation(SavedObject.class) != null){
+			return SavedObjectCodec.INSTANCE;
+		}
+		throw new UnsupportedOperationException("Cannot read or write type " + type.getTypeName());
+	}
+
+	private static TypeCodec compileColumnar(Field field){
+		Class<?> clazz = field.getType();
+		if(!Collection.class.isAssignableFrom(clazz) ||
+				erasure(typeArguments(field.getGenericType(), clazz)[0]).getDeclaredAnnotation(SavedObject.class) == null){
+			throw new UnsupportedOperationException("@Columnar field " + field.getName() + " is not a collection of @SavedObject");
+		}
+		return new ColumnarCodec(field.getGenericType());
+	}
+
+	private static Type[] typeArguments(Type type, Class<?> raw){
+		if(!(type instanceof ParameterizedType)){
+			throw new UnsupportedOperationException("Cannot read or write raw type " + raw.getName());
+		}
+		return ((ParameterizedType) type).getActualTypeArguments();
+	}
+
+	/**
+	 * Clears and returns the previous collection if it is of the declared type and can be cleared, or otherwise creates
+	 * a new one with the collection factory of the stream. Collections that can be cleared but not added to, such as
+	 * empty immutable collections, are replaced by {@link #add(SavedObjectInputStream, Type, Collection, Object, int)}.
+	 */
+	@SuppressWarnings("unchecked")
+	static Collection<Object> reuseCollection(SavedObjectInputStream in, Type type, Object reuse, int length){
+		if(reuse instanceof Collection && erasure(type).isInstance(reuse)){
+			try{
+				((Collection<?>) reuse).clear();
+				return (Collection<Object>) reuse;
+			}catch(UnsupportedOperationException e){
+				// not modifiable
+			}
+		}
+		return in.getCollectionFactory().newCollection(type, length);
+	}
+
+	/**
+	 * Clears and returns the previous map if it is of the declared type and can be cleared, or otherwise creates a new
+	 * one with the collection factory of the stream.
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<Object, Object> reuseMap(SavedObjectInputStream in, Type type, Object reuse, int length){
+		if(reuse instanceof Map && erasure(type).isInstance(reuse)){
+			try{
+				((Map<?, ?>) reuse).clear();
+				return (Map<Object, Object>) reuse;
+			}catch(UnsupportedOperationException e){
+				// not modifiable
+			}
+		}
+		return in.getCollectionFactory().newMap(type, length);
+	}
+
+	static Collection<Object> add(SavedObjectInputStream in, Type type, Collection<Object> coll, Object element, int length){
+		try{
+			coll.add(element);
+			return coll;
+		}catch(UnsupportedOperationException e){ // e.g. an empty immutable collection
+			Collection<Object> copy = in.getCollectionFactory().newCollection(type, length);
+			copy.addAll(coll);
+			copy.add(element);
+			return copy;
+		}
+	}
+
+	static Map<Object, Object> put(SavedObjectInputStream in, Type type, Map<Object, Object> map, Object k, Object v, int length){
+		try{
+			map.put(k, v);
+			return map;
+		}catch(UnsupportedOperationException e){ // e.g. an empty immutable map
+			Map<Object, Object> copy = in.getCollectionFactory().newMap(type, length);
+			copy.putAll(map);
+			copy.put(k, v);
+			return copy;
+		}
+	}
+
+	enum ScalarCodec implements TypeCodec{
+		BYTE{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeByte((Byte) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readByte();
+			}
+		},
+		SHORT{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeShort((Short) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readShort();
+			}
+		},
+		INT{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeInt((Integer) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readInt();
+			}
+		},
+		LONG{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeLong((Long) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readLong();
+			}
+		},
+		FLOAT{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeFloat((Float) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readFloat();
+			}
+		},
+		DOUBLE{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeDouble((Double) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readDouble();
+			}
+		},
+		BOOLEAN{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeBoolean((Boolean) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readBoolean();
+			}
+		},
+		CHAR{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeChar((Character) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readChar();
+			}
+		},
+		STRING{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeString((String) value);
+			}
+
+			@Override
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return in.readString();
+			}
+		},
+		CLASS{
+			@Override
+			public void write(SavedObjectOutputStream out, Object value){
+				out.writeString(((Class<?>) value).getName());
+			}
+
+			@Override
+			@SneakyThrows(ClassNotFoundException.class)
+			public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+				return Class.forName(in.readString());
+			}
+		}
+	}
+
+	@RequiredArgsConstructor
+	static class EnumCodec implements TypeCodec{
+		@SuppressWarnings("rawtypes") private final Class<? extends Enum> enumClass;
+
+		@Override
+		public void write(SavedObjectOutputStream out, Object value){
+			out.writeString(((Enum<?>) value).name());
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+			return Enum.valueOf(enumClass, in.readString());
+		}
+	}
+
+	static class SavedObjectCodec implements TypeCodec{
+		static final SavedObjectCodec INSTANCE = new SavedObjectCodec();
+
+		@Override
+		public void write(SavedObjectOutputStream out, Object value){
+			out.writeSavedObject(value);
+		}
+
+		@Override
+		public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+			return in.readSavedObject(owner, reuse);
+		}
+
+		@Override
+		public Object capture(Object value){
+			if(value == null){
+				return null;
+			}
+			SavedObject annotation = value.getClass().getDeclaredAnnotation(SavedObject.class);
+			if(annotation != null && annotation.immutable()){
+				return value; // can be written later as is, and keeps its cached encoding
+			}
+			return SavedObjectSnapshot.capture(value);
+		}
+
+		@Override
+		public boolean reusesInstances(){
+			return true;
+		}
+	}
+
+	@RequiredArgsConstructor
+	static class NullableCodec implements TypeCodec{
+		final TypeCodec delegate;
+
+		@Override
+		public void write(SavedObjectOutputStream out, Object value){
+			if(value != null){
+				out.writeBoolean(true);
+				delegate.write(out, value);
+			}else{
+				out.writeBoolean(false);
+			}
+		}
+
+		@Override
+		public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+			return in.readBoolean() ? delegate.read(in, owner, reuse) : null;
+		}
+
+		@Override
+		public Object capture(Object value){
+			return value == null ? null : delegate.capture(value);
+		}
+
+		@Override
+		public boolean reusesInstances(){
+			return delegate.reusesInstances();
+		}
+	}
+
+	@RequiredArgsConstructor
+	static class ArrayCodec implements TypeCodec{
+		final Class<?> componentType;
+		final TypeCodec componentCodec;
+
+		@Override
+		public void write(SavedObjectOutputStream out, Object value){
+			int length = Array.getLength(value);
+			out.writeInt(length);
+			for(int i = 0; i < length; i++){
+				componentCodec.write(out, Array.get(value, i));
+			}
+		}
+
+		@Override
+		public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+			int length = in.readInt();
+			Object array = reuse != null && reuse.getClass().getComponentType() == componentType && Array.getLength(reuse) == length ?
+					reuse : Array.newInstance(componentType, length);
+			boolean reuseComponents = array == reuse && componentCodec.reusesInstances();
+			for(int i = 0; i < length; i++){
+				Array.set(array, i, componentCodec.read(in, owner, reuseComponents ? Array.get(array, i) : null));
+			}
+			return array;
+		}
+
+		@Override
+		public Object capture(Object value){
+			if(componentType.isPrimitive()){
+				int length = Array.getLength(value);
+				Object copy = Array.newInstance(componentType, length);
+				System.arraycopy(value, 0, copy, 0, length);
+				return copy;
+			}
+			Object[] array = (Object[]) value;
+			Object[] copy = new Object[array.length];
+			for(int i = 0; i < array.length; i++){
+				copy[i] = componentCodec.capture(array[i]);
+			}
+			return copy;
+		}
+
+		@Override
+		public boolean reusesInstances(){
+			return true;
+		}
+	}
+
+	@RequiredArgsConstructor
+	static class CollectionCodec implements TypeCodec{
+		final Type type;
+		final TypeCodec elementCodec;
+
+		@Override
+		public void write(SavedObjectOutputStream out, Object value){
+			if(value instanceof Object[]){ // captured
+				Object[] elements = (Object[]) value;
+				out.writeInt(elements.length);
+				for(Object o : elements){
+					elementCodec.write(out, o);
+				}
+				return;
+			}
+			Collection<?> coll = (Collection<?>) value;
+			out.writeInt(coll.size());
+			for(Object o : coll){
+				elementCodec.write(out, o);
+			}
+		}
+
+		@Override
+		public Object capture(Object value){
+			Object[] elements = ((Collection<?>) value).toArray();
+			for(int i = 0; i < elements.length; i++){
+				elements[i] = elementCodec.capture(elements[i]);
+			}
+			return elements;
+		}
+
+		@Override
+		public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+			int length = in.readInt();
+			Object[] previous = elementCodec.reusesInstances() && reuse instanceof Collection ? ((Collection<?>) reuse).toArray() : null;
+			Collection<Object> coll = reuseCollection(in, type, reuse, length);
+			for(int i = 0; i < length; i++){
+				// reuse nested values positionally
+				Object element = elementCodec.read(in, owner, previous != null && i < previous.length ? previous[i] : null);
+				coll = add(in, type, coll, element, length);
+			}
+			return in.getCollectionFactory().complete(type, coll);
+		}
+
+		@Override
+		public boolean reusesInstances(){
+			return true;
+		}
+	}
+
+	@RequiredArgsConstructor
+	static class MapCodec implements TypeCodec{
+		final Type type;
+		final TypeCodec keyCodec;
+		final TypeCodec valueCodec;
+
+		@Override
+		public void write(SavedObjectOutputStream out, Object value){
+			if(value instanceof Object[]){ // captured as alternating keys and values
+				Object[] entries = (Object[]) value;
+				out.writeInt(entries.length / 2);
+				for(int i = 0; i < entries.length; i += 2){
+					keyCodec.write(out, entries[i]);
+					valueCodec.write(out, entries[i + 1]);
+				}
+				return;
+			}
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeInt(map.size());
+			for(Map.Entry<?, ?> entry : map.entrySet()){
+				keyCodec.write(out, entry.getKey());
+				valueCodec.write(out, entry.getValue());
+			}
+		}
+
+		@Override
+		public Object capture(Object value){
+			Map<?, ?> map = (Map<?, ?>) value;
+			Object[] entries = new Object[map.size() * 2];
+			int i = 0;
+			for(Map.Entry<?, ?> entry : map.entrySet()){
+				entries[i++] = keyCodec.capture(entry.getKey());
+				entries[i++] = valueCodec.capture(entry.getValue());
+			}
+			return entries;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object read(SavedObjectInputStream in, Object owner, Object reuse){
+			int length = in.readInt();
+			Map<Object, Object> previous = null;
+			if(valueCodec.reusesInstances() && reuse instanceof Map && !((Map<?, ?>) reuse).isEmpty()){
+				previous = new HashMap<>((Map<?, ?>) reuse); // reuse nested values by key
+			}
+			Map<Object, Object> map = reuseMap(in, type, reuse, length);
+			if(map instanceof IntKeyMap && keyCodec == ScalarCodec.INT){
+				IntKeyMap<Object> intKeyMap = (IntKeyMap<Object>) (Map<?, ?>) map;
+				for(int i = 0; i < length; i++){
+					int k = in.readInt();
+					intKeyMap.put(k, valueCodec.read(in, owner, previous != null ? previous.get(k) : null));
+				}
+			}else{
+				for(int i = 0; i < length; i++){
+					Object k = keyCodec.read(in, owner, null);
+					Object v = valueCodec.read(in, owner, previous != null ? previous.get(k) : null);
+					map = put(in, type, map, k, v, length);
+				}
+			}
+			return in.getCollectionFactory().complete(type, map);
+		}
+
+		@Override
+		public boolean reusesInstances(){
+			return true;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestColumnar{
+	@SavedObject(1)
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	@ToString
+	public static class Table{
+		@SavedProperty(1) @Columnar private List<Row> rows;
+	}
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	@ToString
+	public static class Row{
+		@SavedProperty(1) private int id;
+		@SavedProperty(1) private String name;
+		@SavedProperty(1) private double score;
+		@SavedProperty(1) private Tag tag;
+
+		public Row(int id){
+			this.id = id;
+			name = "row-" + id;
+			score = id / 4.0;
+			tag = new Tag("tag-" + id % 3);
+		}
+	}
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	@ToString
+	public static class Tag{
+		@SavedProperty(1) private String label;
+
+		public Tag(String label){
+			this.label = label;
+		}
+	}
+
+	private static byte[] writeTable(Object table){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new SavedObjectOutputStream(baos).writeSavedObject(table);
+		return baos.toByteArray();
+	}
+
+	private static Table newTable(int size){
+		Table table = new Table();
+		table.rows = new ArrayList<>();
+		for(int i = 0; i < size; i++){
+			table.rows.add(new Row(i));
+		}
+		return table;
+	}
+
+	@Test
+	public void doTestColumnar(){
+		Table table = newTable(100);
+		Object parsed = new SavedObjectInputStream(new ByteArrayInputStream(writeTable(table))).readSavedObject(null);
+		Assert.assertEquals(table, parsed);
+
+		Table empty = newTable(0);
+		Assert.assertEquals(empty, new SavedObjectInputStream(new ByteArrayInputStream(writeTable(empty))).readSavedObject(null));
+	}
+
+	@Test
+	public void doTestColumnFilter(){
+		Table table = newTable(10);
+		SavedObjectInputStream sois = new SavedObjectInputStream(new ByteArrayInputStream(writeTable(table)));
+		sois.setColumnFilter(field -> !field.getName().equals("name"));
+		Table parsed = (Table) sois.readSavedObject(null);
+		for(int i = 0; i < 10; i++){
+			Assert.assertEquals(i, parsed.rows.get(i).id);
+			Assert.assertNull(parsed.rows.get(i).name);
+			Assert.assertEquals(table.rows.get(i).tag, parsed.rows.get(i).tag);
+		}
+
+		Table dirty = newTable(10); // reused elements must not keep names
+		sois = new SavedObjectInputStream(new ByteArrayInputStream(writeTable(table)));
+		sois.setColumnFilter(field -> !field.getName().equals("name"));
+		Assert.assertSame(dirty, sois.readSavedObjectInto(dirty, null));
+		for(int i = 0; i < 10; i++){
+			Assert.assertEquals(i, dirty.rows.get(i).id);
+			Assert.assertNull(dirty.rows.get(i).name);
+		}
+	}
+
+	@Test
+	public void doTestLittleEndian(){
+		Table table = newTable(10);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new SavedObjectOutputStream(baos, ByteOrder.LITTLE_ENDIAN).writeSavedObject(table);
+		Object parsed = new SavedObjectInputStream(new ByteArrayInputStream(baos.toByteArray()), ByteOrder.LITTLE_ENDIAN).readSavedObject(null);
+		Assert.assertEquals(table, parsed);
+
+		Table snapshot = (Table) new SavedObjectInputStream(new ByteArrayInputStream(writeTable(SavedObjectSnapshot.capture(table)))).readSavedObject(null);
+		Assert.assertEquals(table, snapshot);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void doTestMixedElements(){
+		Table table = newTable(2);
+		table.rows.add(null);
+		writeTable(table);
+	}
+}
@@ -0,0 +1,87 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestEncodedObjectCache{
+	@SavedObject(value = 1, immutable = true)
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	@ToString
+	public static class Template{
+		@SavedProperty(1) private String name;
+		@SavedProperty(1) private Item item;
+
+		public Template(String name){
+			this.name = name;
+			item = new Item(name.length());
+		}
+	}
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	@ToString
+	public static class Item{
+		@SavedProperty(1) private int amount;
+
+		public Item(int amount){
+			this.amount = amount;
+		}
+	}
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	@ToString
+	public static class Holder{
+		@SavedProperty(1) private List<Item> items;
+		@SavedProperty(1) private Template first;
+		@SavedProperty(1) private Template second;
+	}
+
+	private static Object roundTrip(Object object, EncodedObjectCache cache){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SavedObjectOutputStream soos = new SavedObjectOutputStream(baos);
+		soos.setEncodedObjectCache(cache);
+		soos.writeSavedObject(object);
+		return new SavedObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readSavedObject(null);
+	}
+
+	@Test
+	public void doTestCachedEncoding(){
+		EncodedObjectCache cache = new EncodedObjectCache(1 << 20);
+		Item marked = new Item(7);
+		cache.markImmutable(marked);
+		Holder holder = new Holder();
+		// the cached encoding of the marked item registers the Item version before the second item back-references it
+		holder.items = Arrays.asList(marked, new Item(8), marked);
+		holder.first = new Template("template");
+		holder.second = holder.first;
+		Assert.assertEquals(holder, roundTrip(holder, cache));
+		Assert.assertEquals(holder, roundTrip(holder, cache));
+
+		marked.amount = 9; // breaks the promise on purpose to observe the cached bytes
+		Assert.assertEquals(7, ((Holder) roundTrip(holder, cache)).items.get(0).amount);
+		cache.invalidate(marked);
+		Assert.assertEquals(9, ((Holder) roundTrip(holder, cache)).items.get(0).amount);
+	}
+
+	@Test
+	public void doTestEviction(){
+		EncodedObjectCache cache = new EncodedObjectCache(0);
+		Template template = new Template("template");
+		roundTrip(template, cache);
+		template.name = "changed";
+		Assert.assertEquals(template, roundTrip(template, cache));
+	}
+}
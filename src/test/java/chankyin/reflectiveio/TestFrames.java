@@ -0,0 +1,165 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.Cleanup;
+import lombok.NoArgsConstructor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFrames{
+	final File fileForTest = new File(".", "Frames.dat");
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	public static class Record{
+		@SavedProperty(1) private int id;
+		@SavedProperty(1) private String name;
+
+		public Record(int id){
+			this.id = id;
+			name = "record-" + id;
+		}
+	}
+
+	@Test
+	public void doTestIterator(){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SavedObjectOutputStream soos = new SavedObjectOutputStream(baos);
+		for(int i = 0; i < 10; i++){
+			soos.writeSavedObject(i == 5 ? null : new Record(i));
+		}
+		SavedObjectInputStream sois = new SavedObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		Iterator<Object> iterator = sois.iterator(null);
+		for(int i = 0; i < 10; i++){
+			Assert.assertTrue(iterator.hasNext());
+			Object object = iterator.next();
+			if(i == 5){
+				Assert.assertNull(object);
+			}else{
+				Assert.assertEquals("record-" + i, ((Record) object).name);
+			}
+		}
+		Assert.assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void doTestParallelStream() throws Exception{
+		int count = 10000;
+		try(SavedObjectFrameWriter writer = new SavedObjectFrameWriter(new FileOutputStream(fileForTest))){
+			for(int i = 0; i < count; i++){
+				writer.write(new Record(i));
+			}
+		}
+		@Cleanup Stream<Object> stream = SavedObjectFrames.stream(fileForTest.toPath());
+		Assert.assertEquals((long) count * (count - 1) / 2, stream.parallel().mapToLong(o -> ((Record) o).id).sum());
+		@Cleanup Stream<Object> ordered = SavedObjectFrames.stream(fileForTest.toPath());
+		Assert.assertArrayEquals(new int[]{0, 1, 2}, ordered.limit(3).mapToInt(o -> ((Record) o).id).toArray());
+		fileForTest.delete(); // if no exceptions
+	}
+
+	@Test
+	public void doTestCrc32c(){
+		Crc32c crc = new Crc32c();
+		crc.update("123456789".getBytes(), 0, 9);
+		Assert.assertEquals(0xE3069283L, crc.getValue());
+
+		byte[] bytes = new byte[1000];
+		for(int i = 0; i < bytes.length; i++){
+			bytes[i] = (byte) (i * 31 + 7);
+		}
+		crc.reset();
+		crc.update(bytes, 3, 990);
+		Crc32c bytewise = new Crc32c();
+		for(int i = 3; i < 993; i++){
+			bytewise.update(bytes[i]);
+		}
+		Assert.assertEquals(bytewise.getValue(), crc.getValue());
+	}
+
+	@Test
+	public void doTestShortReads(){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new SavedObjectOutputStream(baos).writeSavedObject(new Record(42));
+		byte[] bytes = baos.toByteArray();
+		InputStream trickle = new ByteArrayInputStream(bytes){
+			@Override
+			public synchronized int read(byte[] b, int off, int len){
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+		Assert.assertEquals("record-42", ((Record) new SavedObjectInputStream(trickle).readSavedObject(null)).name);
+
+		try{
+			new SavedObjectInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 3)).readSavedObject(null);
+			Assert.fail();
+		}catch(Exception e){
+			Assert.assertTrue(e instanceof EOFException);
+		}
+	}
+
+	@Test
+	public void doTestChecksummedFrames() throws Exception{
+		int count = 1000;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		long[] offsets = new long[count];
+		try(SavedObjectFrameWriter writer = new SavedObjectFrameWriter(baos, ByteOrder.BIG_ENDIAN, SavedObjectFrames.Format.CHECKSUMMED)){
+			for(int i = 0; i < count; i++){
+				offsets[i] = baos.size();
+				writer.write(new Record(i));
+			}
+		}
+		byte[] bytes = baos.toByteArray();
+		Files.write(fileForTest.toPath(), bytes);
+		try(Stream<Object> stream = SavedObjectFrames.stream(fileForTest.toPath(), ByteOrder.BIG_ENDIAN, SavedObjectFrames.Format.CHECKSUMMED)){
+			Assert.assertEquals((long) count * (count - 1) / 2, stream.parallel().mapToLong(o -> ((Record) o).id).sum());
+		}
+		SavedObjectFrames.Verification verification = SavedObjectFrames.verify(fileForTest.toPath());
+		Assert.assertTrue(verification.isIntact());
+		Assert.assertEquals(count, verification.getValidFrames());
+
+		bytes[(int) offsets[10] + 15] ^= 1; // payload
+		bytes[(int) offsets[500]] ^= 1; // sync marker
+		bytes[(int) offsets[700] + 11] += 100; // payload length, hiding the following frames
+		Files.write(fileForTest.toPath(), bytes);
+
+		verification = SavedObjectFrames.verify(fileForTest.toPath());
+		Assert.assertFalse(verification.isIntact());
+		Assert.assertEquals(count - 3, verification.getValidFrames());
+		Assert.assertArrayEquals(new long[]{offsets[10], offsets[500], offsets[700]}, verification.getDamagedOffsets());
+
+		List<Long> salvageDamage = new ArrayList<>();
+		List<Integer> ids;
+		try(Stream<Object> stream = SavedObjectFrames.salvage(fileForTest.toPath(), ByteOrder.BIG_ENDIAN, salvageDamage::add)){
+			ids = stream.map(o -> ((Record) o).id).collect(Collectors.toList());
+		}
+		Assert.assertEquals(count - 3, ids.size());
+		Assert.assertFalse(ids.contains(10) || ids.contains(500) || ids.contains(700));
+		Assert.assertTrue(ids.contains(701));
+		Assert.assertEquals(Arrays.asList(offsets[10], offsets[500], offsets[700]), salvageDamage);
+
+		try(Stream<Object> stream = SavedObjectFrames.stream(fileForTest.toPath(), ByteOrder.BIG_ENDIAN, SavedObjectFrames.Format.CHECKSUMMED)){
+			stream.forEach(o -> {
+			});
+			Assert.fail();
+		}catch(Exception e){
+			Assert.assertTrue(e instanceof StreamCorruptedException);
+		}
+		fileForTest.delete(); // if no exceptions
+	}
+}
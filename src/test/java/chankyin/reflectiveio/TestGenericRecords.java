@@ -0,0 +1,178 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.NoArgsConstructor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestGenericRecords{
+	public enum Kind{
+		SMALL, LARGE
+	}
+
+	@SavedObject(2)
+	@NoArgsConstructor
+	public static class Item{
+		@SavedProperty(1) private int id;
+		@SavedProperty(1) private String name;
+		@SavedProperty(1) private Kind kind;
+		@SavedProperty(1) private int[] values;
+		@SavedProperty(1) private Map<String, List<Long>> attributes;
+		@SavedProperty(1) private Item child;
+		@SavedProperty(2) @Columnar private List<Part> parts;
+
+		public Item(int id){
+			this.id = id;
+			name = "item-" + id;
+			kind = id % 2 == 0 ? Kind.SMALL : Kind.LARGE;
+			values = new int[]{id, id * 2};
+			attributes = new LinkedHashMap<>();
+			attributes.put("a", Arrays.asList(1L, (long) id));
+			attributes.put("b", null);
+			parts = new ArrayList<>();
+			for(int i = 0; i < 3; i++){
+				parts.add(new Part(id * 10 + i));
+			}
+		}
+	}
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	public static class Part{
+		@SavedProperty(1) private double weight;
+		@SavedProperty(1) private Kind kind;
+
+		public Part(int weight){
+			this.weight = weight;
+			kind = Kind.LARGE;
+		}
+	}
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	public static class Base{
+		@SavedProperty(1) private String label = "base";
+	}
+
+	@SavedObject(2)
+	@NoArgsConstructor
+	public static class Sub extends Base{
+		@SavedProperty(2) private long extra = 7L;
+	}
+
+	private static byte[] writeItems(SavedObjectSchema schema, int count){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SavedObjectOutputStream soos = new SavedObjectOutputStream(baos);
+		soos.setSchema(schema);
+		for(int i = 0; i < count; i++){
+			Item item = new Item(i);
+			if(i % 3 == 0){
+				item.child = new Item(-i);
+			}
+			soos.writeSavedObject(item);
+		}
+		soos.writeSavedObject(null);
+		return baos.toByteArray();
+	}
+
+	private static SavedObjectSchema copy(SavedObjectSchema schema){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		schema.writeTo(new SavedObjectOutputStream(baos));
+		return SavedObjectSchema.readFrom(new SavedObjectInputStream(new ByteArrayInputStream(baos.toByteArray())));
+	}
+
+	@Test
+	public void doTestRecords(){
+		SavedObjectSchema written = new SavedObjectSchema();
+		byte[] bytes = writeItems(written, 10);
+		SavedObjectSchema schema = copy(written);
+		Assert.assertEquals(written.getClasses().toString(), schema.getClasses().toString());
+		Assert.assertEquals("NULLABLE<MAP<STRING, NULLABLE<COLLECTION<LONG>>>>",
+				schema.get(Item.class.getName(), (short) 2).getProperties().get(4).getType().toString());
+
+		GenericRecordReader reader = new GenericRecordReader(new ByteArrayInputStream(bytes), schema);
+		GenericRecord record = null;
+		for(int i = 0; i < 10; i++){
+			GenericRecord next = reader.next(record);
+			Assert.assertTrue(record == null || record == next);
+			record = next;
+			Assert.assertEquals(Item.class.getName(), record.getClassName());
+			Assert.assertEquals(i, record.get("id"));
+			Assert.assertEquals("item-" + i, record.get("name"));
+			Assert.assertEquals(new Item(i).kind.name(), record.get("kind"));
+			Assert.assertArrayEquals(new Object[]{i, i * 2}, (Object[]) record.get("values"));
+			Map<?, ?> attributes = (Map<?, ?>) record.get("attributes");
+			Assert.assertEquals(Arrays.asList(1L, (long) i), attributes.get("a"));
+			Assert.assertTrue(attributes.containsKey("b"));
+			GenericRecord child = (GenericRecord) record.get("child");
+			if(i % 3 == 0){
+				Assert.assertEquals(-i, child.get("id"));
+			}else{
+				Assert.assertNull(child);
+			}
+			List<?> parts = (List<?>) record.get("parts");
+			Assert.assertEquals(3, parts.size());
+			Assert.assertEquals((double) (i * 10 + 2), ((GenericRecord) parts.get(2)).get("weight"));
+			Assert.assertEquals("LARGE", ((GenericRecord) parts.get(2)).get("kind"));
+		}
+		Assert.assertNull(reader.next());
+		Assert.assertFalse(reader.hasNext());
+	}
+
+	@Test
+	public void doTestVisitor(){
+		SavedObjectSchema schema = new SavedObjectSchema();
+		byte[] bytes = writeItems(schema, 10);
+		GenericRecordReader reader = new GenericRecordReader(new ByteArrayInputStream(bytes), schema);
+		List<Object> names = new ArrayList<>();
+		RecordVisitor visitor = new RecordVisitor(){
+			@Override
+			public boolean selects(SavedObjectSchema.Property property){
+				return property.getName().equals("name");
+			}
+
+			@Override
+			public void visitProperty(SavedObjectSchema.Property property, Object value){
+				names.add(value);
+			}
+		};
+		reader.skip();
+		while(reader.hasNext()){
+			reader.accept(visitor);
+		}
+		List<Object> expected = new ArrayList<>();
+		for(int i = 1; i < 10; i++){
+			expected.add("item-" + i);
+		}
+		Assert.assertEquals(expected, names);
+	}
+
+	@Test
+	public void doTestSubclassBeforeSuperclass(){
+		SavedObjectSchema schema = new SavedObjectSchema();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SavedObjectOutputStream soos = new SavedObjectOutputStream(baos);
+		soos.setSchema(schema);
+		soos.writeSavedObject(new Sub());
+		soos.writeSavedObject(new Base());
+
+		GenericRecordReader reader = new GenericRecordReader(new ByteArrayInputStream(baos.toByteArray()), copy(schema));
+		GenericRecord sub = reader.next();
+		Assert.assertEquals(Sub.class.getName(), sub.getClassName());
+		Assert.assertEquals("base", sub.get("label"));
+		Assert.assertEquals(7L, sub.get("extra"));
+		GenericRecord base = reader.next();
+		Assert.assertEquals(Base.class.getName(), base.getClassName());
+		Assert.assertEquals(1, base.size());
+		Assert.assertEquals("base", base.get("label"));
+		Assert.assertFalse(reader.hasNext());
+	}
+}
@@ -0,0 +1,171 @@
+package chankyin.reflectiveio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestGenericTypes{
+	@SavedObject(1)
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	@ToString
+	public static class Nested{
+		@SavedProperty(1) private List<List<String>> lists;
+		@SavedProperty(1) private Map<String, List<Integer>> mapOfLists;
+		@SavedProperty(1) private List<String>[] arrayOfLists;
+		@SavedProperty(1) private List<? extends String> upperBounded;
+		@SavedProperty(1) private List<? super Integer> lowerBounded;
+		@SavedProperty(1) private int[][] matrix;
+	}
+
+	public enum Kind{
+		A, B, C
+	}
+
+	@SavedObject(1)
+	@NoArgsConstructor
+	@EqualsAndHashCode(exclude = "deque") // ArrayDeque does not override equals()
+	@ToString
+	public static class Containers{
+		@SavedProperty(1) private Set<String> set;
+		@SavedProperty(1) private Deque<Integer> deque;
+		@SavedProperty(1) private HashMap<String, Long> hashMap;
+		@SavedProperty(1) private Map<Kind, String> enumMap;
+		@SavedProperty(1) private Map<Integer, String> intKeyMap;
+		@SavedProperty(1) private List<String> list;
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void doTestNestedGenerics(){
+		Nested nested = new Nested();
+		nested.lists = Arrays.asList(Arrays.asList("a", "b"), Collections.emptyList(), Collections.singletonList("c"));
+		nested.mapOfLists = new LinkedHashMap<>();
+		nested.mapOfLists.put("x", Arrays.asList(1, 2, 3));
+		nested.mapOfLists.put("y", null);
+		nested.arrayOfLists = new List[]{Collections.singletonList("d"), null};
+		nested.upperBounded = Arrays.asList("e", "f");
+		nested.lowerBounded = new ArrayList<>(Arrays.asList(4, 5));
+		nested.matrix = new int[][]{{1, 2}, null, {}};
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new SavedObjectOutputStream(baos).writeSavedObject(nested);
+		Object parsed = new SavedObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readSavedObject(null);
+		Assert.assertEquals(nested, parsed);
+	}
+
+	private static Containers newContainers(){
+		Containers containers = new Containers();
+		containers.set = new HashSet<>(Arrays.asList("a", "b"));
+		containers.deque = new ArrayDeque<>(Arrays.asList(1, 2));
+		containers.hashMap = new HashMap<>();
+		containers.hashMap.put("x", 3L);
+		containers.enumMap = new LinkedHashMap<>();
+		containers.enumMap.put(Kind.C, "c");
+		containers.enumMap.put(Kind.A, "a");
+		containers.intKeyMap = new LinkedHashMap<>();
+		for(int i = 0; i < 100; i++){
+			containers.intKeyMap.put(i * 31, "v" + i);
+		}
+		containers.list = Collections.singletonList("l");
+		return containers;
+	}
+
+	private static byte[] write(Object object){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new SavedObjectOutputStream(baos).writeSavedObject(object);
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void doTestCollectionFactory(){
+		Containers containers = newContainers();
+		Containers parsed = (Containers) new SavedObjectInputStream(new ByteArrayInputStream(write(containers))).readSavedObject(null);
+		Assert.assertEquals(containers, parsed);
+		Assert.assertTrue(parsed.deque instanceof ArrayDeque);
+		Assert.assertEquals(new ArrayList<>(containers.deque), new ArrayList<>(parsed.deque));
+		Assert.assertTrue(parsed.enumMap instanceof EnumMap);
+		Assert.assertTrue(parsed.intKeyMap instanceof IntKeyMap);
+		Assert.assertEquals(new ArrayList<>(containers.intKeyMap.keySet()), new ArrayList<>(parsed.intKeyMap.keySet()));
+
+		SavedObjectInputStream sois = new SavedObjectInputStream(new ByteArrayInputStream(write(containers)));
+		sois.setCollectionFactory(new ImmutableCollectionFactory());
+		Containers immutable = (Containers) sois.readSavedObject(null);
+		Assert.assertEquals(containers, immutable);
+		try{
+			immutable.set.add("c");
+			Assert.fail();
+		}catch(UnsupportedOperationException e){
+			// expected
+		}
+	}
+
+	@SavedObject(1)
+	public static class Initialized{
+		@SavedProperty(1) private Collection<String> collection = new HashSet<>();
+		@SavedProperty(1) private Map<Integer, String> intKeyMap = new HashMap<>();
+	}
+
+	@Test
+	public void doTestInitializedCollections(){
+		Initialized initialized = new Initialized();
+		initialized.collection.addAll(Arrays.asList("a", "b"));
+		initialized.intKeyMap.put(1, "x");
+		initialized.intKeyMap.put(2, "y");
+		byte[] bytes = write(initialized);
+
+		Initialized parsed = (Initialized) new SavedObjectInputStream(new ByteArrayInputStream(bytes)).readSavedObject(null);
+		Assert.assertTrue(parsed.intKeyMap instanceof IntKeyMap); // created by the factory, not cleared and reused
+		Assert.assertEquals(initialized.intKeyMap, parsed.intKeyMap);
+
+		SavedObjectInputStream sois = new SavedObjectInputStream(new ByteArrayInputStream(bytes));
+		sois.setCollectionFactory(new ImmutableCollectionFactory());
+		Assert.assertEquals(Arrays.asList("a", "b"), ((Initialized) sois.readSavedObject(null)).collection);
+
+		Initialized target = new Initialized();
+		sois = new SavedObjectInputStream(new ByteArrayInputStream(bytes));
+		sois.setCollectionFactory(new ImmutableCollectionFactory());
+		sois.readSavedObjectInto(target, null);
+		Assert.assertEquals(initialized.collection, target.collection); // reused set, wrapped as a set
+		try{
+			target.collection.add("c");
+			Assert.fail();
+		}catch(UnsupportedOperationException e){
+			// expected
+		}
+	}
+
+	@Test
+	public void doTestIntKeyMap(){
+		IntKeyMap<String> map = new IntKeyMap<>(2);
+		for(int i = 0; i < 10; i++){
+			map.put(i, "v" + i);
+		}
+		Assert.assertEquals("v5", map.remove(5));
+		map.put(5, "w5");
+		map.entrySet().removeIf(entry -> entry.getKey() % 2 == 0);
+		Assert.assertEquals(Arrays.asList(1, 3, 7, 9, 5), new ArrayList<>(map.keySet()));
+		Assert.assertEquals("w5", map.get(5));
+		Assert.assertNull(map.get(4));
+		Assert.assertEquals(5, map.size());
+	}
+}
@@ -1,9 +1,13 @@
 package chankyin.reflectiveio;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import lombok.Cleanup;
 import lombok.EqualsAndHashCode;
@@ -78,6 +82,21 @@ public class TestObjectSave{
 		}
 	}
 
+	@SavedObject(2)
+	public static class Parent{
+		@SavedProperty(1) private Child child = new Child();
+	}
+
+	@SavedObject(2)
+	public static class Child{
+		static final int[] DEFAULT_VALUES = {1, 2};
+		static final List<String> DEFAULT_TAGS = new ArrayList<>(Collections.singletonList("x"));
+
+		@SavedProperty(1) private int[] values = DEFAULT_VALUES;
+		@SavedProperty(1) private List<String> tags = DEFAULT_TAGS;
+		@SavedProperty(2) private String label = "default";
+	}
+
 	@Test
 	public void doJunitWarmup() throws IOException{
 		Assert.assertNotNull(SavedObjectOutputStream.class);
@@ -103,6 +122,116 @@ public class TestObjectSave{
 		fileForTest.delete(); // if no exceptions
 	}
 
+	@Test
+	public void doTestReadInto() throws Exception{
+		Bar bar = new Bar();
+		bar.bar = null; // removed in version 3, so reset in the target
+		testWrite0(bar);
+		Bar target = new Bar();
+		Content content = ((Foo) target).c0;
+		@Cleanup InputStream is = new FileInputStream(fileForTest);
+		SavedObjectInputStream sois = new SavedObjectInputStream(is);
+		Object object = sois.readSavedObjectInto(target, null);
+		Assert.assertSame(target, object);
+		Assert.assertSame(content, ((Foo) target).c0);
+		Assert.assertEquals(bar.toString(), object.toString());
+		fileForTest.delete(); // if no exceptions
+	}
+
+	@Test
+	public void doTestInstancePool() throws Exception{
+		Bar bar = new Bar();
+		bar.bar = null; // removed in version 3, so reset in the pooled instance
+		testWrite0(bar);
+		Bar pooled = new Bar();
+		@Cleanup InputStream is = new FileInputStream(fileForTest);
+		SavedObjectInputStream sois = new SavedObjectInputStream(is);
+		sois.setInstancePool(clazz -> clazz == Bar.class ? pooled : null);
+		Assert.assertSame(pooled, sois.readSavedObject(null));
+		Assert.assertEquals(bar.toString(), pooled.toString());
+		fileForTest.delete(); // if no exceptions
+	}
+
+	@Test
+	public void doTestReadIntoDirtyTarget() throws Exception{
+		Content content = new Content();
+		testWrite0(content);
+		Content target = new Content(new Foo());
+		target.floatList0 = Collections.singletonList(1F);
+		target.floatList1 = Collections.singletonList(2F);
+		@Cleanup InputStream is = new FileInputStream(fileForTest);
+		Assert.assertSame(target, new SavedObjectInputStream(is).readSavedObjectInto(target, null));
+		Assert.assertNull(target.bar); // previous owner cleared
+		Assert.assertEquals(content.floatList0, target.floatList0);
+		Assert.assertEquals(content.floatList1, target.floatList1);
+
+		Bar bar = new Bar();
+		testWrite0(bar);
+		Bar dirty = new Bar();
+		dirty.bar = "dirty";
+		@Cleanup InputStream is2 = new FileInputStream(fileForTest);
+		new SavedObjectInputStream(is2).readSavedObjectInto(dirty, null);
+		Assert.assertNull(dirty.bar); // not present in version 3
+		Assert.assertEquals(bar.i, dirty.i);
+		fileForTest.delete(); // if no exceptions
+	}
+
+	@Test
+	public void doTestReadOlderVersion() throws Exception{
+		Child child = new Child();
+		child.values = new int[]{7, 8};
+		child.tags = Collections.singletonList("y");
+		{
+			@Cleanup OutputStream os = new FileOutputStream(fileForTest);
+			SavedObjectOutputStream soos = new SavedObjectOutputStream(os);
+			writeVersion(soos, Parent.class, (short) 1);
+			writeVersion(soos, Child.class, (short) 1);
+			for(SavedObjectLayout.Property property : SavedObjectLayout.of(Child.class).properties){
+				if(property.isPresentIn((short) 1)){
+					property.codec.write(soos, property.field.get(child));
+				}
+			}
+		}
+		Parent parent = (Parent) testRead0();
+		Assert.assertArrayEquals(new int[]{7, 8}, parent.child.values);
+		Assert.assertEquals(Collections.singletonList("y"), parent.child.tags);
+		Assert.assertEquals("default", parent.child.label); // not present in version 1
+		Assert.assertArrayEquals(new int[]{1, 2}, Child.DEFAULT_VALUES);
+		Assert.assertEquals(Collections.singletonList("x"), Child.DEFAULT_TAGS);
+		fileForTest.delete(); // if no exceptions
+	}
+
+	/**
+	 * Writes the non-null flag and the version of a SavedObject class with no @SavedObject superclass, as an older
+	 * version of the class would have written them.
+	 */
+	private static void writeVersion(SavedObjectOutputStream out, Class<?> clazz, short version){
+		out.writeBoolean(true);
+		out.writeBoolean(true);
+		out.writeBoolean(false); // not a back-reference
+		out.writeString(clazz.getName());
+		out.writeShort(version);
+		out.writeBoolean(false);
+	}
+
+	@Test
+	public void doTestSnapshot() throws Exception{
+		Bar bar = new Bar();
+		String expected = bar.toString();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try{
+			@Cleanup OutputStream os = new FileOutputStream(fileForTest);
+			CompletableFuture<Void> future = new SavedObjectOutputStream(os).writeSavedObjectAsync(bar, executor);
+			bar.i = 0L;
+			((Foo) bar).foo = "mutated";
+			future.get();
+		}finally{
+			executor.shutdown();
+		}
+		Assert.assertEquals(expected, testRead0().toString());
+		fileForTest.delete(); // if no exceptions
+	}
+
 	public void testWrite0(Object object) throws Exception{
 		@Cleanup OutputStream os = new FileOutputStream(fileForTest);
 		SavedObjectOutputStream soos = new SavedObjectOutputStream(os);